@@ -0,0 +1,56 @@
+package kws;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Word graphs of the shipped out/ data for the benchmarks.
+ *
+ * The output directory of task 1 is taken from the system property kws.out (default ../out, i.e. relative to the
+ * benchmarks module), every sub-directory with a graphs_binary directory is a page.
+ */
+class BenchmarkData {
+
+    static final String KEYWORD_ID = "270-01-05";
+
+    private static final String DIR_GXL = "graphs_binary";
+
+    static String pathOut() {
+        return System.getProperty("kws.out", "../out");
+    }
+
+    static String[] pageIds() {
+        File[] dirs = new File(pathOut()).listFiles(dir -> new File(dir, DIR_GXL).isDirectory());
+        if (dirs == null || dirs.length == 0) {
+            throw new IllegalStateException("no pages in " + new File(pathOut()).getAbsolutePath()
+                    + ", set -Dkws.out to the output directory of task 1");
+        }
+        String[] pageIds = new String[dirs.length];
+        for (int p = 0; p < dirs.length; p++) {
+            pageIds[p] = dirs[p].getName();
+        }
+        Arrays.sort(pageIds);
+        return pageIds;
+    }
+
+    static File gxl(String graphId) {
+        String pageId = graphId.substring(0, graphId.indexOf("-"));
+        return new File(new File(new File(pathOut(), pageId), DIR_GXL), graphId + ".xml");
+    }
+
+    static List<KPackedGraph> corpus() {
+        return new CorpusLoader().load(pathOut(), pageIds()).getGraphs();
+    }
+
+    /*
+     * Corpus graphs sorted by number of nodes.
+     */
+    static List<KPackedGraph> bySize() {
+        List<KPackedGraph> graphs = new ArrayList<KPackedGraph>(corpus());
+        graphs.sort((g1, g2) -> Integer.compare(g1.size(), g2.size()));
+        return graphs;
+    }
+
+}
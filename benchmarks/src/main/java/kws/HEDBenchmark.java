@@ -0,0 +1,62 @@
+package kws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * HED.match on pairs of word graphs of the corpus: small (5th percentile of the number of nodes), median and large
+ * (95th percentile). The two graphs of a pair are neighbors in the order by size. The vectorized kernel only
+ * applies without the spatial index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HEDBenchmark {
+
+    @Param({"small", "median", "large"})
+    public String pair;
+
+    @Param({"false", "true"})
+    public boolean spatialIndex;
+
+    @Param({"false", "true"})
+    public boolean vectorized;
+
+    private HED hed;
+    private KPackedGraph g1;
+    private KPackedGraph g2;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<KPackedGraph> graphs = BenchmarkData.bySize();
+        double percentile = "small".equals(pair) ? 0.05 : ("median".equals(pair) ? 0.5 : 0.95);
+        int i = Math.min((int) (percentile * graphs.size()), graphs.size() - 2);
+        g1 = graphs.get(i);
+        g2 = graphs.get(i + 1);
+        hed = new HED(new KCost(25.0, 50.0));
+        hed.setSpatialIndex(spatialIndex);
+        hed.setVectorized(vectorized);
+    }
+
+    @Benchmark
+    public double match() {
+        return hed.match(g1, g2);
+    }
+
+}
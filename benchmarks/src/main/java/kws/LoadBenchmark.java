@@ -0,0 +1,84 @@
+package kws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Reading the word graphs: a single GXL file of median size, all pages with the parallel CorpusLoader, and all pages
+ * from a GraphStore.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+
+    private File gxl;
+    private String graphId;
+    private String pathOut;
+    private String[] pageIds;
+    private File store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        pathOut = BenchmarkData.pathOut();
+        pageIds = BenchmarkData.pageIds();
+        List<KPackedGraph> graphs = BenchmarkData.bySize();
+        graphId = graphs.get(graphs.size() / 2).getGraphId();
+        gxl = BenchmarkData.gxl(graphId);
+
+        // compile a store outside of out/
+        store = Files.createTempFile("kws-benchmark", ".kgs").toFile();
+        store.delete();
+        new GraphStore(store).update(pathOut, pageIds, new CorpusLoader(),
+                new ArrayList<CorpusLoader.Failure>());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public KPackedGraph parseGXL() throws IOException {
+        return GXLReader.readPacked(gxl, graphId);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public List<KPackedGraph> loadCorpus() {
+        return new CorpusLoader().load(pathOut, pageIds).getGraphs();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public List<KPackedGraph> loadStore() throws IOException {
+        return new GraphStore(store).load();
+    }
+
+}
@@ -0,0 +1,103 @@
+package kws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Edge matching of HED between the center nodes of two star graphs, for different pairs of degrees. Keypoint graphs
+ * mostly have degrees 1 to 3, junctions up to about 8.
+ *
+ * HED.match only calls matchEdges for edge costs that are not constant (KCost.hasConstantEdgeSub), with unlabeled
+ * edges it looks the edge matching up by the degrees instead. edges selects the cost function: unlabeled is the
+ * default KCost, labeled a cost with an edge substitution cost (LabeledEdgeCost). matchEdges measures the assignment
+ * itself, match the whole HED of the two stars, i.e. the path that is actually taken for the cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatchEdgesBenchmark {
+
+    @Param({"1:1", "2:2", "1:3", "3:3", "2:6", "8:8"})
+    public String degrees;
+
+    @Param({"unlabeled", "labeled"})
+    public String edges;
+
+    private HED hed;
+    private KPackedGraph g1;
+    private KPackedGraph g2;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] pair = degrees.split(":");
+        g1 = star("g1", Integer.parseInt(pair[0]));
+        g2 = star("g2", Integer.parseInt(pair[1]));
+        hed = new HED("labeled".equals(edges) ? new LabeledEdgeCost(25.0, 50.0) : new KCost(25.0, 50.0));
+    }
+
+    @Benchmark
+    public double matchEdges() {
+        return hed.matchEdges(g1, 0, g2, 0);
+    }
+
+    @Benchmark
+    public double match() {
+        return hed.match(g1, g2);
+    }
+
+    /*
+     * Node 0 connected to the nodes 1 ... degree, which are placed on a circle around it.
+     */
+    private static KPackedGraph star(String graphId, int degree) {
+        double[] x = new double[degree + 1];
+        double[] y = new double[degree + 1];
+        int[] offsets = new int[degree + 2];
+        int[] adjacency = new int[2 * degree];
+        offsets[1] = degree;
+        for (int k = 1; k <= degree; k++) {
+            x[k] = 25.0 * Math.cos(2 * Math.PI * k / degree);
+            y[k] = 25.0 * Math.sin(2 * Math.PI * k / degree);
+            adjacency[k - 1] = k;
+            adjacency[degree + k - 1] = 0;
+            offsets[k + 1] = offsets[k] + 1;
+        }
+        return new KDoubleGraph(graphId, x, y, offsets, adjacency);
+    }
+
+    /*
+     * Edges labeled by their goal node: the substitution cost is the distance between the goal nodes, such that
+     * HED has to match the edges with matchEdges.
+     */
+    static class LabeledEdgeCost extends KCost {
+
+        LabeledEdgeCost(double nodeCost, double edgeCost) {
+            super(nodeCost, edgeCost);
+        }
+
+        @Override
+        public boolean hasConstantEdgeSub() {
+            return false;
+        }
+
+        @Override
+        public double edgeSub(KPackedGraph g1, int e1, KPackedGraph g2, int e2) {
+            return g1.distance(g1.goal(e1), g2, g2.goal(e2));
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package kws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One keyword spotting query end to end: reading the keyword GXL and matching it against the whole corpus for
+ * the top 10, as in Main.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpottingBenchmark {
+
+    @Param({"true", "false"})
+    public boolean pruning;
+
+    @Param({"0"})
+    public int threads;
+
+    private List<KPackedGraph> words;
+    private MatchEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        words = BenchmarkData.corpus();
+        engine = new MatchEngine(new KCost(25.0, 50.0),
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        engine.setPruning(pruning);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public List<MatchEngine.Match> query() throws IOException {
+        String keywordId = BenchmarkData.KEYWORD_ID;
+        KPackedGraph keyword = GXLReader.readPacked(BenchmarkData.gxl(keywordId), keywordId);
+        return engine.search(keyword, words, 10);
+    }
+
+}
@@ -0,0 +1,68 @@
+package kws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+/*
+ * All-pairs mode: compute the HED between all word graphs of the pages, see DistanceMatrix.
+ *
+ * Usage: AllPairs [pathOut] [matrix]
+ * The matrix file defaults to hed_matrix.f32 in pathOut. Running again with the same pages and costs resumes an
+ * interrupted run from its last checkpoint.
+ */
+public class AllPairs {
+
+    private static final String FILE_MATRIX = "hed_matrix.f32";
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Settings, see Main
+         */
+
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        double nodeCost = 25.0;
+        double edgeCost = 50.0;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useStore = true;
+
+        if (args.length > 0) {
+            pathOut = args[0];
+        }
+        File matrixFile = args.length > 1 ? new File(args[1]) : Paths.get(pathOut, FILE_MATRIX).toFile();
+
+        /*
+         * Read Graphs
+         */
+
+        System.out.println("Reading page graphs ...");
+        double startTime = System.currentTimeMillis();
+
+        List<KPackedGraph> words = Main.getWords(pathOut, pageIds, threads, useStore);
+
+        System.out.println("... done. Read "
+                + words.size() + " graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Match Graphs
+         */
+
+        DistanceMatrix matrix = new DistanceMatrix(matrixFile, words, new KCost(nodeCost, edgeCost));
+        System.out.println("Matching all pairs of " + words.size() + " graphs into " + matrixFile + " ...");
+        startTime = System.currentTimeMillis();
+
+        int computed = matrix.compute(threads);
+
+        System.out.println("... done. Matched "
+                + computed + " of " + matrix.getTileCount() + " tiles in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+    }
+
+}
@@ -0,0 +1,29 @@
+package kws;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Files that are written to a temporary file first and then moved into place, such that readers never see a
+ * partial file.
+ */
+class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    /*
+     * Move tmp to file, replacing it. The move is atomic where the file system supports it, otherwise a plain move.
+     */
+    static void replace(Path tmp, Path file) throws IOException {
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package kws;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Batch keyword spotting: match many keyword graphs against the page graphs in a single run.
+ *
+ * The corpus is read once and all keywords are matched in one pass over the word graphs (see
+ * MatchEngine.searchBatch). The top-N ranking of each keyword is written to a tab-separated output file with one
+ * line per result: keyword id, rank, word id, distance.
+ *
+ * Usage: Batch [pathOut] [keywords] [output] [topN]
+ * where keywords is either a file with one keyword id per line (empty lines and lines starting with # are skipped)
+ * or a comma-separated list of keyword ids. Missing arguments are taken from the settings below.
+ */
+public class Batch {
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Settings, see Main
+         */
+
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+
+        String keywords = "270-01-05,270-03-04,271-02-03";
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+        String output = "topN.tsv";
+
+        double nodeCost = 25.0;
+        double edgeCost = 50.0;
+
+        int topN = 10;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useStore = true;
+        boolean pruning = true;
+        boolean spatialIndex = false;
+
+        if (args.length > 0) {
+            pathOut = args[0];
+        }
+        if (args.length > 1) {
+            keywords = args[1];
+        }
+        if (args.length > 2) {
+            output = args[2];
+        }
+        if (args.length > 3) {
+            topN = Integer.parseInt(args[3]);
+        }
+
+        /*
+         * Read Graphs
+         */
+
+        System.out.println("Reading page graphs ...");
+        double startTime = System.currentTimeMillis();
+
+        List<KPackedGraph> words = Main.getWords(pathOut, pageIds, threads, useStore);
+        List<KPackedGraph> queries = getKeywords(pathOut, getKeywordIds(keywords), words);
+
+        System.out.println("... done. Read "
+                + words.size() + " graphs and "
+                + queries.size() + " keywords in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Match Graphs
+         */
+
+        System.out.println("Matching " + queries.size() + " keyword graphs with page graphs ...");
+        startTime = System.currentTimeMillis();
+
+        List<List<MatchEngine.Match>> results;
+        KCost cost = new KCost(nodeCost, edgeCost);
+        MatchEngine.Stats stats = new MatchEngine.Stats();
+        try (MatchEngine engine = new MatchEngine(cost, threads)) {
+            engine.setPruning(pruning);
+            engine.setSpatialIndex(spatialIndex);
+            results = engine.searchBatch(queries, words, topN, stats);
+        }
+
+        System.out.println("    " + stats);
+        System.out.println("... done. Matched "
+                + queries.size() + " x " + words.size() + " graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Write Top-N
+         */
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+            for (int q = 0; q < queries.size(); q++) {
+                List<MatchEngine.Match> matches = results.get(q);
+                for (int i = 0; i < matches.size(); i++) {
+                    MatchEngine.Match match = matches.get(i);
+                    writer.write(queries.get(q).getGraphId() + "\t" + (i + 1) + "\t"
+                            + match.getGraphId() + "\t" + match.getDistance());
+                    writer.newLine();
+                }
+            }
+        }
+        System.out.println("Wrote top " + topN + " of " + queries.size() + " keywords to " + output);
+
+        Metrics.printSummary(System.out);
+    }
+
+    /*
+     * Keyword ids from a file, if keywords names an existing file, or else from a comma-separated list.
+     */
+    private static List<String> getKeywordIds(String keywords) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        File file = new File(keywords);
+        if (file.isFile()) {
+            lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        } else {
+            for (String keywordId : keywords.split(",")) {
+                lines.add(keywordId);
+            }
+        }
+        List<String> keywordIds = new ArrayList<String>();
+        for (String line : lines) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                keywordIds.add(line);
+            }
+        }
+        return keywordIds;
+    }
+
+    /*
+     * Keyword graphs that are part of the loaded pages are taken from the corpus, all others are read from their GXL.
+     */
+    private static List<KPackedGraph> getKeywords(String pathOut, List<String> keywordIds, List<KPackedGraph> words) {
+        Map<String, KPackedGraph> index = new HashMap<String, KPackedGraph>();
+        for (KPackedGraph word : words) {
+            index.put(word.getGraphId(), word);
+        }
+        List<KPackedGraph> queries = new ArrayList<KPackedGraph>(keywordIds.size());
+        for (String keywordId : keywordIds) {
+            KPackedGraph keyword = index.get(keywordId);
+            queries.add(keyword != null ? keyword : Main.getKeyword(pathOut, keywordId));
+        }
+        return queries;
+    }
+
+}
@@ -0,0 +1,203 @@
+package kws;
+
+/*
+ * Bipartite graph edit distance (BP)
+ *
+ * Reference paper:
+ * K. Riesen and H. Bunke.
+ * Approximate graph edit distance computation by means of bipartite graph matching.
+ * Image and Vision Computing, 27(7), 950–959, 2009.
+ *
+ * 1. The square cost matrix of size n1 + n2 holds the cost of substituting each node of g1 with each node of g2,
+ *    deleting each node of g1 (diagonal of the upper right block) and inserting each node of g2 (diagonal of the
+ *    lower left block), each including the cheapest matching of the adjacent edges.
+ * 2. The optimal assignment of this matrix (LinearAssignment) is a complete node mapping.
+ * 3. The cost of the edit path implied by the node mapping is the distance: node substitutions, deletions and
+ *    insertions, edges between substituted nodes are substituted if both graphs have them, all others are deleted
+ *    or inserted.
+ *
+ * As the cost of an actual edit path, the distance is an upper bound of the graph edit distance, whereas HED is a
+ * lower bound. Like in HED, each adjacent edge counts half in the cost matrix since it is shared by two nodes, and
+ * the distance is normalized with the maximum graph edit distance.
+ *
+ * The cost matrices and the node mapping are kept between calls, an instance is a per-thread workspace.
+ */
+public class BipartiteGED implements GraphMatcher {
+
+    private KCost cost;
+    private boolean constantEdges;
+
+    private LinearAssignment nodeAssignment = new LinearAssignment();
+    private LinearAssignment edgeAssignment = new LinearAssignment();
+
+    // node of g2 substituted for each node of g1 (-1 if deleted), and an edge and the number of edges of g2 to each
+    // node from the image of the current node of g1
+    private int[] image = new int[0];
+    private int[] edgeTo = new int[0];
+    private int[] edgeCount = new int[0];
+    private int[] edgeStamp = new int[0];
+    private int stamp;
+
+    public BipartiteGED(KCost cost) {
+        this.cost = cost;
+        constantEdges = cost.hasConstantEdgeSub();
+    }
+
+    /*
+     * Compute the bipartite graph edit distance between two keypoint graphs g1 and g2.
+     */
+    public double match(KGraph g1, KGraph g2) {
+        return match(KPackedGraph.pack(g1), KPackedGraph.pack(g2));
+    }
+
+    /*
+     * Compute the bipartite graph edit distance on the packed representation of g1 and g2.
+     */
+    @Override
+    public double match(KPackedGraph g1, KPackedGraph g2) {
+        int n1 = g1.size();
+        int n2 = g2.size();
+        int size = n1 + n2;
+        double[] matrix = nodeAssignment.matrix(size);
+
+        // substitutions (upper left) and deletions (upper right)
+        for (int i = 0; i < n1; i++) {
+            int row = i * size;
+            for (int j = 0; j < n2; j++) {
+                matrix[row + j] = cost.nodeSub(g1, i, g2, j) + 0.5 * matchEdges(g1, i, g2, j);
+            }
+            for (int k = 0; k < n1; k++) {
+                matrix[row + n2 + k] = Double.POSITIVE_INFINITY;
+            }
+            matrix[row + n2 + i] = cost.nodeDelIns() + 0.5 * g1.degree(i) * cost.edgeDelIns();
+        }
+
+        // insertions (lower left) and the free assignment of deletions to insertions (lower right)
+        for (int j = 0; j < n2; j++) {
+            int row = (n1 + j) * size;
+            for (int k = 0; k < n2; k++) {
+                matrix[row + k] = Double.POSITIVE_INFINITY;
+            }
+            matrix[row + j] = cost.nodeDelIns() + 0.5 * g2.degree(j) * cost.edgeDelIns();
+            for (int k = 0; k < n1; k++) {
+                matrix[row + n2 + k] = 0;
+            }
+        }
+
+        nodeAssignment.solve();
+
+        // normalize with the maximum graph edit distance, as HED
+        double maxNodes = (n1 + n2) * cost.nodeDelIns();
+        double maxEdges = (numberOfEdges(g1) + numberOfEdges(g2)) * cost.edgeDelIns();
+        return editPath(g1, g2) / (maxNodes + maxEdges);
+    }
+
+    /*
+     * Cost of the edit path implied by the node mapping of the last assignment.
+     */
+    private double editPath(KPackedGraph g1, KPackedGraph g2) {
+        int n1 = g1.size();
+        int n2 = g2.size();
+        if (image.length < n1) {
+            image = new int[n1];
+        }
+        if (edgeTo.length < n2) {
+            edgeTo = new int[n2];
+            edgeCount = new int[n2];
+            edgeStamp = new int[n2];
+            stamp = 0;
+        }
+
+        // substituted nodes, then the deleted nodes of g1 and the inserted nodes of g2
+        double distance = 0;
+        int substituted = 0;
+        for (int i = 0; i < n1; i++) {
+            int j = nodeAssignment.column(i);
+            if (j < n2) {
+                image[i] = j;
+                distance += cost.nodeSub(g1, i, g2, j);
+                substituted++;
+            } else {
+                image[i] = -1;
+            }
+        }
+        distance += (n1 - substituted + n2 - substituted) * cost.nodeDelIns();
+
+        // edges between substituted nodes that are in both graphs, each edge once (i <= k), parallel edges are
+        // substituted as often as both graphs have them, and a loop is in the adjacency of its node twice
+        double substitutedEdges = 0;
+        for (int i = 0; i < n1; i++) {
+            int j = image[i];
+            if (j < 0) {
+                continue;
+            }
+            stamp++;
+            for (int e2 = g2.firstEdge(j); e2 < g2.firstEdge(j + 1); e2++) {
+                int l = g2.goal(e2);
+                if (edgeStamp[l] != stamp) {
+                    edgeStamp[l] = stamp;
+                    edgeCount[l] = 0;
+                }
+                edgeTo[l] = e2;
+                edgeCount[l]++;
+            }
+            for (int e1 = g1.firstEdge(i); e1 < g1.firstEdge(i + 1); e1++) {
+                int k = g1.goal(e1);
+                if (k >= i && image[k] >= 0 && edgeStamp[image[k]] == stamp && edgeCount[image[k]] > 0) {
+                    edgeCount[image[k]]--;
+                    double share = k == i ? 0.5 : 1;
+                    distance += share * cost.edgeSub(g1, e1, g2, edgeTo[image[k]]);
+                    substitutedEdges += share;
+                }
+            }
+        }
+        distance += (numberOfEdges(g1) - substitutedEdges + numberOfEdges(g2) - substitutedEdges) * cost.edgeDelIns();
+        return distance;
+    }
+
+    /*
+     * Minimum cost of matching the edges of node i in g1 with the edges of node j in g2.
+     */
+    double matchEdges(KPackedGraph g1, int i, KPackedGraph g2, int j) {
+        int degree1 = g1.degree(i);
+        int degree2 = g2.degree(j);
+        if (constantEdges) {
+            // any assignment substitutes the edges of the node with fewer edges, the others are deleted or inserted
+            double sub = Math.min(cost.constantEdgeSub(), 2 * cost.edgeDelIns());
+            return Math.min(degree1, degree2) * sub + Math.abs(degree1 - degree2) * cost.edgeDelIns();
+        }
+
+        // the same structure of substitutions, deletions and insertions as the node matrix
+        int size = degree1 + degree2;
+        if (size == 0) {
+            return 0;
+        }
+        double[] matrix = edgeAssignment.matrix(size);
+        int first1 = g1.firstEdge(i);
+        int first2 = g2.firstEdge(j);
+        for (int e1 = 0; e1 < degree1; e1++) {
+            int row = e1 * size;
+            for (int e2 = 0; e2 < degree2; e2++) {
+                matrix[row + e2] = cost.edgeSub(g1, first1 + e1, g2, first2 + e2);
+            }
+            for (int k = 0; k < degree1; k++) {
+                matrix[row + degree2 + k] = k == e1 ? cost.edgeDelIns() : Double.POSITIVE_INFINITY;
+            }
+        }
+        for (int e2 = 0; e2 < degree2; e2++) {
+            int row = (degree1 + e2) * size;
+            for (int k = 0; k < degree2; k++) {
+                matrix[row + k] = k == e2 ? cost.edgeDelIns() : Double.POSITIVE_INFINITY;
+            }
+            for (int k = 0; k < degree1; k++) {
+                matrix[row + degree2 + k] = 0;
+            }
+        }
+        return edgeAssignment.solve();
+    }
+
+    private static int numberOfEdges(KPackedGraph graph) {
+        return graph.firstEdge(graph.size()) / 2;
+    }
+
+}
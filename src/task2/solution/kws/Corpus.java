@@ -0,0 +1,80 @@
+package kws;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Immutable snapshot of the word graphs that are searched.
+ *
+ * Each snapshot has a version number, which is increased by CorpusWatcher whenever pages change. A search that
+ * takes a snapshot sees the same graphs until it is finished, no matter how many newer snapshots are published
+ * in the meantime.
+ */
+public class Corpus {
+
+    private long version;
+    private List<KPackedGraph> graphs;
+    private Map<String, Integer> index;
+    private volatile String contentVersion;
+    private volatile EmbeddingIndex embeddingIndex;
+
+    public Corpus(long version, List<KPackedGraph> graphs) {
+        this.version = version;
+        this.graphs = Collections.unmodifiableList(graphs);
+        index = new HashMap<String, Integer>();
+        for (int i = 0; i < graphs.size(); i++) {
+            index.put(graphs.get(i).getGraphId(), i);
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<KPackedGraph> getGraphs() {
+        return graphs;
+    }
+
+    public int size() {
+        return graphs.size();
+    }
+
+    public KPackedGraph get(int i) {
+        return graphs.get(i);
+    }
+
+    /*
+     * Graph with the given id, or null if it is not in the corpus.
+     */
+    public KPackedGraph find(String graphId) {
+        Integer i = index.get(graphId);
+        return i == null ? null : graphs.get(i);
+    }
+
+    /*
+     * Content hash of the graphs (see ResultCache.version), computed on first use.
+     */
+    public String getContentVersion() {
+        String contentVersion = this.contentVersion;
+        if (contentVersion == null) {
+            contentVersion = ResultCache.version(graphs);
+            this.contentVersion = contentVersion;
+        }
+        return contentVersion;
+    }
+
+    /*
+     * Embeddings of the graphs for approximate search (see EmbeddingIndex), computed on first use.
+     */
+    public EmbeddingIndex getEmbeddingIndex() {
+        EmbeddingIndex embeddingIndex = this.embeddingIndex;
+        if (embeddingIndex == null) {
+            embeddingIndex = new EmbeddingIndex(graphs);
+            this.embeddingIndex = embeddingIndex;
+        }
+        return embeddingIndex;
+    }
+
+}
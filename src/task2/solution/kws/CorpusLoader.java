@@ -0,0 +1,346 @@
+package kws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Parallel loader for the word graphs of several pages.
+ *
+ * Listing the page directories and parsing the GXL files are both spread over a fork-join pool with a
+ * configurable parallelism. The graphs are returned in a deterministic order (pages in the given order, files
+ * sorted by name within a page), independent of the scheduling. Files that cannot be read are reported as
+ * failures and left out of the result instead of yielding empty graphs.
+ */
+public class CorpusLoader {
+
+    private static final String DIR_GXL = "graphs_binary";
+    private static final String TYPE_GXL = "xml";
+
+    /*
+     * Files below this number are parsed in a single task.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private int parallelism;
+
+    public CorpusLoader(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public CorpusLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /*
+     * Load the word graphs of all pages below pathOut.
+     */
+    public Result load(String pathOut, String[] pageIds) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return load(pool, pathOut, pageIds);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Parse the given GXL files in parallel. The graphs are returned at the index of their file, null for the files
+     * that could not be read, which are added to failures.
+     */
+    public KPackedGraph[] parse(File[] files, List<Failure> failures) {
+        List<Failure> parseFailures = Collections.synchronizedList(new ArrayList<Failure>());
+        PageTask page = new PageTask(null, files, parseFailures);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(page);
+        } finally {
+            pool.shutdown();
+        }
+        List<Failure> sorted = new ArrayList<Failure>(parseFailures);
+        sorted.sort((f1, f2) -> f1.path.compareTo(f2.path));
+        failures.addAll(sorted);
+        return page.graphs;
+    }
+
+    private Result load(ForkJoinPool pool, String pathOut, String[] pageIds) {
+        List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+
+        // list the page directories in parallel
+        PageTask[] pages = new PageTask[pageIds.length];
+        List<ListTask> listings = new ArrayList<ListTask>();
+        for (int p = 0; p < pageIds.length; p++) {
+            ListTask listing = new ListTask(Paths.get(pathOut, pageIds[p], DIR_GXL), failures);
+            listings.add(listing);
+            pool.execute(listing);
+        }
+
+        // parse the files of all pages in parallel
+        for (int p = 0; p < pageIds.length; p++) {
+            File[] files = listings.get(p).join();
+            pages[p] = new PageTask(pageIds[p], files, failures);
+            pool.execute(pages[p]);
+        }
+
+        // collect the graphs in page and file order
+        List<KPackedGraph> graphs = new ArrayList<KPackedGraph>();
+        List<PageTiming> timings = new ArrayList<PageTiming>();
+        for (PageTask page : pages) {
+            page.join();
+            int loaded = 0;
+            for (KPackedGraph graph : page.graphs) {
+                if (graph != null) {
+                    graphs.add(graph);
+                    loaded++;
+                }
+            }
+            timings.add(new PageTiming(page.pageId, loaded, page.files.length - loaded,
+                    (page.endTime.get() - page.startTime.get()) / 1e6, page.parseTime.get() / 1e6));
+        }
+
+        // report failures in a deterministic order as well
+        List<Failure> sorted = new ArrayList<Failure>(failures);
+        sorted.sort((f1, f2) -> f1.path.compareTo(f2.path));
+        return new Result(graphs, sorted, timings);
+    }
+
+    /*
+     * Graph id of a GXL file, i.e. the file name without extension.
+     */
+    static String graphId(File gxl) {
+        String gxlName = gxl.getName();
+        return gxlName.substring(0, gxlName.indexOf(TYPE_GXL) - 1);
+    }
+
+    /*
+     * List the GXL files of a page directory, sorted by name.
+     */
+    private static class ListTask extends RecursiveTask<File[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Path dir;
+        private List<Failure> failures;
+
+        ListTask(Path dir, List<Failure> failures) {
+            this.dir = dir;
+            this.failures = failures;
+        }
+
+        @Override
+        protected File[] compute() {
+            List<File> files = new ArrayList<File>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+                    path -> path.toString().endsWith(TYPE_GXL))) {
+                for (Path path : stream) {
+                    files.add(path.toFile());
+                }
+            } catch (IOException e) {
+                failures.add(new Failure(dir.toFile(), e));
+            }
+            Collections.sort(files);
+            return files.toArray(new File[0]);
+        }
+    }
+
+    /*
+     * Parse all files of a page. The graphs are stored at the index of their file (null for failures).
+     */
+    private static class PageTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private String pageId;
+        private File[] files;
+        private KPackedGraph[] graphs;
+        private List<Failure> failures;
+
+        private AtomicLong startTime = new AtomicLong(Long.MAX_VALUE);
+        private AtomicLong endTime = new AtomicLong(Long.MIN_VALUE);
+        private AtomicLong parseTime = new AtomicLong();
+
+        PageTask(String pageId, File[] files, List<Failure> failures) {
+            this.pageId = pageId;
+            this.files = files;
+            this.graphs = new KPackedGraph[files.length];
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            Metrics.LoadEvent event = new Metrics.LoadEvent();
+            event.begin();
+            if (files.length == 0) {
+                long now = System.nanoTime();
+                startTime.set(now);
+                endTime.set(now);
+            } else {
+                new ParseTask(this, 0, files.length).invoke();
+            }
+            if (event.shouldCommit()) {
+                event.source = "gxl";
+                event.pageId = pageId;
+                for (KPackedGraph graph : graphs) {
+                    if (graph != null) {
+                        event.graphs++;
+                    }
+                }
+                event.failures = files.length - event.graphs;
+                event.commit();
+            }
+        }
+    }
+
+    private static class ParseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private PageTask page;
+        private int from;
+        private int to;
+
+        ParseTask(PageTask page, int from, int to) {
+            this.page = page;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(page, from, mid), new ParseTask(page, mid, to));
+                return;
+            }
+            long start = System.nanoTime();
+            page.startTime.accumulateAndGet(start, Math::min);
+            for (int i = from; i < to; i++) {
+                File gxl = page.files[i];
+                try {
+                    page.graphs[i] = GXLReader.readPacked(gxl, graphId(gxl));
+                } catch (IOException | RuntimeException e) {
+                    page.failures.add(new Failure(gxl, e));
+                }
+            }
+            long end = System.nanoTime();
+            page.parseTime.addAndGet(end - start);
+            page.endTime.accumulateAndGet(end, Math::max);
+        }
+    }
+
+    /*
+     * Loaded graphs together with the failures and the timing of each page.
+     */
+    public static class Result {
+
+        private List<KPackedGraph> graphs;
+        private List<Failure> failures;
+        private List<PageTiming> timings;
+
+        Result(List<KPackedGraph> graphs, List<Failure> failures, List<PageTiming> timings) {
+            this.graphs = graphs;
+            this.failures = failures;
+            this.timings = timings;
+        }
+
+        public List<KPackedGraph> getGraphs() {
+            return graphs;
+        }
+
+        public List<Failure> getFailures() {
+            return failures;
+        }
+
+        public List<PageTiming> getTimings() {
+            return timings;
+        }
+    }
+
+    /*
+     * A file (or page directory) that could not be read.
+     */
+    public static class Failure {
+
+        private File path;
+        private Exception cause;
+
+        Failure(File path, Exception cause) {
+            this.path = path;
+            this.cause = cause;
+        }
+
+        public File getPath() {
+            return path;
+        }
+
+        public Exception getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + cause;
+        }
+    }
+
+    /*
+     * Wall-clock time from the first to the last parsed file of a page, and the parse time summed over all threads.
+     */
+    public static class PageTiming {
+
+        private String pageId;
+        private int graphs;
+        private int failures;
+        private double wallTime;
+        private double parseTime;
+
+        PageTiming(String pageId, int graphs, int failures, double wallTime, double parseTime) {
+            this.pageId = pageId;
+            this.graphs = graphs;
+            this.failures = failures;
+            this.wallTime = wallTime;
+            this.parseTime = parseTime;
+        }
+
+        public String getPageId() {
+            return pageId;
+        }
+
+        public int getGraphs() {
+            return graphs;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public double getWallTime() {
+            return wallTime;
+        }
+
+        public double getParseTime() {
+            return parseTime;
+        }
+
+        @Override
+        public String toString() {
+            return pageId + ": " + graphs + " graphs, " + failures + " failures, "
+                    + Math.round(wallTime) + " ms wall, " + Math.round(parseTime) + " ms parse";
+        }
+    }
+
+}
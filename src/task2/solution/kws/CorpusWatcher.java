@@ -0,0 +1,264 @@
+package kws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Incremental ingestion of the word graphs of several pages.
+ *
+ * The watcher keeps the name, modification time and size of every GXL file of the pages, together with its graph.
+ * A refresh compares this manifest with the graphs_binary directories, parses only the new and changed files,
+ * drops the removed ones and publishes a new Corpus snapshot if anything changed. Searches that hold an older
+ * snapshot are not affected.
+ *
+ * Once started, a background thread refreshes a page when its directory reports changes (WatchService), waiting
+ * DEBOUNCE_MILLIS for further changes first, and all pages every RESCAN_MILLIS in case events were missed or a page
+ * directory did not exist yet. Files that cannot be parsed (e.g. still being written) are left out until they
+ * change again.
+ */
+public class CorpusWatcher implements AutoCloseable {
+
+    private static final String DIR_GXL = "graphs_binary";
+    private static final String TYPE_GXL = "xml";
+
+    private static final long DEBOUNCE_MILLIS = 200;
+    private static final long RESCAN_MILLIS = 60000;
+
+    /*
+     * Margin for the resolution of file modification times.
+     */
+    private static final long CLOCK_MILLIS = 2000;
+
+    private String pathOut;
+    private String[] pageIds;
+    private CorpusLoader loader;
+
+    // manifest and graphs of each page, files sorted by name
+    private Map<String, TreeMap<String, Entry>> pages = new HashMap<String, TreeMap<String, Entry>>();
+    private volatile Corpus corpus = new Corpus(0, new ArrayList<KPackedGraph>());
+
+    private WatchService watchService;
+    private Map<WatchKey, String> watchedPages = new HashMap<WatchKey, String>();
+    private Thread thread;
+
+    public CorpusWatcher(String pathOut, String[] pageIds, CorpusLoader loader) {
+        this.pathOut = pathOut;
+        this.pageIds = pageIds.clone();
+        this.loader = loader;
+    }
+
+    /*
+     * Current snapshot.
+     */
+    public Corpus getCorpus() {
+        return corpus;
+    }
+
+    /*
+     * Publish the first snapshot, taking the graphs that are already loaded (e.g. from the GraphStore) for their
+     * files and parsing all others, then watch the page directories for changes.
+     * loadTime is the time (System.currentTimeMillis()) at which loading the graphs was started. Files modified
+     * since then may have been loaded in an older state, so they are parsed again.
+     */
+    public synchronized Corpus start(List<KPackedGraph> loaded, long loadTime) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Map<String, KPackedGraph> graphs = new HashMap<String, KPackedGraph>();
+        for (KPackedGraph graph : loaded) {
+            graphs.put(graph.getGraphId(), graph);
+        }
+        for (String pageId : pageIds) {
+            register(pageId);
+        }
+        refresh(Arrays.asList(pageIds), graphs, loadTime - CLOCK_MILLIS);
+
+        thread = new Thread(this::watch, "corpus-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return corpus;
+    }
+
+    /*
+     * Compare all pages with their directories and publish a new snapshot if anything changed.
+     */
+    public synchronized Corpus refresh() {
+        for (String pageId : pageIds) {
+            if (!watchedPages.containsValue(pageId) && watchService != null) {
+                register(pageId);
+            }
+        }
+        return refresh(Arrays.asList(pageIds), new HashMap<String, KPackedGraph>(), 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /*
+     * Refresh the given pages. For new and changed files, the loaded graph is taken if the file was last modified
+     * before loadedBefore, otherwise the file is parsed.
+     */
+    private synchronized Corpus refresh(List<String> pageIds, Map<String, KPackedGraph> loaded, long loadedBefore) {
+        int added = 0;
+        int changed = 0;
+        int removed = 0;
+        List<File> files = new ArrayList<File>();
+        List<Entry> entries = new ArrayList<Entry>();
+        Map<String, TreeMap<String, Entry>> updated = new HashMap<String, TreeMap<String, Entry>>();
+        for (String pageId : pageIds) {
+            TreeMap<String, Entry> page = pages.containsKey(pageId) ? pages.get(pageId) : new TreeMap<String, Entry>();
+            TreeMap<String, Entry> scanned = new TreeMap<String, Entry>();
+            File[] gxls = Paths.get(pathOut, pageId, DIR_GXL).toFile().listFiles((d, name) -> name.endsWith(TYPE_GXL));
+            for (File gxl : gxls == null ? new File[0] : gxls) {
+                Entry entry = new Entry(gxl.lastModified(), gxl.length());
+                Entry old = page.get(gxl.getName());
+                if (old != null && old.modified == entry.modified && old.size == entry.size) {
+                    entry.graph = old.graph;
+                } else {
+                    entry.graph = entry.modified < loadedBefore ? loaded.get(CorpusLoader.graphId(gxl)) : null;
+                    if (old == null) {
+                        added++;
+                    } else {
+                        changed++;
+                    }
+                    if (entry.graph == null) {
+                        files.add(gxl);
+                        entries.add(entry);
+                    }
+                }
+                scanned.put(gxl.getName(), entry);
+            }
+            for (String name : page.keySet()) {
+                if (!scanned.containsKey(name)) {
+                    removed++;
+                }
+            }
+            updated.put(pageId, scanned);
+        }
+        if (added + changed + removed == 0 && corpus.getVersion() > 0) {
+            return corpus;
+        }
+
+        // parse the new and changed files
+        List<CorpusLoader.Failure> failures = new ArrayList<CorpusLoader.Failure>();
+        KPackedGraph[] parsed = loader.parse(files.toArray(new File[0]), failures);
+        for (int f = 0; f < parsed.length; f++) {
+            entries.get(f).graph = parsed[f];
+        }
+        for (CorpusLoader.Failure failure : failures) {
+            System.err.println("    failed to read " + failure);
+        }
+
+        // publish the graphs in page and file order
+        pages.putAll(updated);
+        List<KPackedGraph> graphs = new ArrayList<KPackedGraph>();
+        for (String pageId : this.pageIds) {
+            TreeMap<String, Entry> page = pages.get(pageId);
+            for (Entry entry : page == null ? new ArrayList<Entry>() : page.values()) {
+                if (entry.graph != null) {
+                    graphs.add(entry.graph);
+                }
+            }
+        }
+        corpus = new Corpus(corpus.getVersion() + 1, graphs);
+        System.out.println("    corpus version " + corpus.getVersion() + ": " + graphs.size() + " graphs (" + added
+                + " added, " + changed + " changed, " + removed + " removed, " + files.size() + " parsed)");
+        return corpus;
+    }
+
+    private void register(String pageId) {
+        Path dir = Paths.get(pathOut, pageId, DIR_GXL);
+        if (!dir.toFile().isDirectory()) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedPages.put(key, pageId);
+        } catch (IOException e) {
+            System.err.println("    cannot watch " + dir + ": " + e);
+        }
+    }
+
+    /*
+     * Refresh the pages whose directories changed, and all pages every RESCAN_MILLIS. A refresh that fails is
+     * reported and tried again with the next change or rescan, the watcher only stops when it is closed.
+     */
+    private void watch() {
+        long lastRescan = System.currentTimeMillis();
+        try {
+            while (true) {
+                long wait = Math.max(1, lastRescan + RESCAN_MILLIS - System.currentTimeMillis());
+                WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    lastRescan = System.currentTimeMillis();
+                    tryRefresh(this::refresh);
+                    continue;
+                }
+
+                // collect the changed pages until the directories are quiet
+                Set<String> changed = new LinkedHashSet<String>();
+                while (key != null) {
+                    key.pollEvents();
+                    synchronized (this) {
+                        String pageId = watchedPages.get(key);
+                        if (pageId != null) {
+                            changed.add(pageId);
+                        }
+                        if (!key.reset()) {
+                            watchedPages.remove(key);
+                        }
+                    }
+                    key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                tryRefresh(() -> refresh(new ArrayList<String>(changed), new HashMap<String, KPackedGraph>(), 0));
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void tryRefresh(Runnable refresh) {
+        try {
+            refresh.run();
+        } catch (ClosedWatchServiceException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            System.err.println("    corpus refresh failed, still watching: " + e);
+        }
+    }
+
+    private static class Entry {
+
+        private long modified;
+        private long size;
+        private KPackedGraph graph;
+
+        Entry(long modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+}
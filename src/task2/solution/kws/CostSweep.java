@@ -0,0 +1,207 @@
+package kws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Grid search over the costs (nodeCost, edgeCost), measured with the retrieval quality of Evaluation.
+ *
+ * Instead of matching all pairs once per grid point, each pair of query and word is matched once with HEDTerms,
+ * from which the HED of every grid point is computed. A full sweep thus costs about one matching pass plus a
+ * small amount per grid point. The queries are evaluated in parallel, each worker thread with its own HEDTerms.
+ *
+ * Usage: CostSweep [pathOut] [transcription]
+ */
+public class CostSweep {
+
+    private Evaluation evaluation;
+    private List<KPackedGraph> corpus;
+
+    public CostSweep(Evaluation evaluation, List<KPackedGraph> corpus) {
+        this.evaluation = evaluation;
+        this.corpus = corpus;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Settings, see Evaluation
+         */
+
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+        String pathTranscription = "data/ground-truth/transcription.txt";
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        double[] nodeCosts = {5.0, 10.0, 15.0, 25.0, 35.0, 50.0};
+        double[] edgeCosts = {0.0, 10.0, 25.0, 50.0, 75.0, 100.0};
+
+        boolean allInstances = false;
+        int maxQueries = 0;
+        int[] ks = {1, 5, 10};
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useStore = true;
+
+        if (args.length > 0) {
+            pathOut = args[0];
+        }
+        if (args.length > 1) {
+            pathTranscription = args[1];
+        }
+
+        /*
+         * Read Graphs
+         */
+
+        System.out.println("Reading page graphs ...");
+        double startTime = System.currentTimeMillis();
+
+        List<KPackedGraph> words = Main.getWords(pathOut, pageIds, threads, useStore);
+        Evaluation evaluation = new Evaluation(words, Evaluation.readTranscription(new File(pathTranscription)));
+        int[] queries = evaluation.queries(allInstances, maxQueries);
+
+        System.out.println("... done. Read "
+                + words.size() + " graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Sweep
+         */
+
+        System.out.println("Evaluating " + nodeCosts.length * edgeCosts.length + " cost settings with "
+                + queries.length + " queries against " + words.size() + " words ...");
+        startTime = System.currentTimeMillis();
+
+        Evaluation.Result[][] results = new CostSweep(evaluation, words).sweep(nodeCosts, edgeCosts, queries, ks, threads);
+
+        double millis = System.currentTimeMillis() - startTime;
+        long pairs = results.length == 0 || results[0].length == 0 ? 0 : results[0][0].getPairs();
+        System.out.println("... done. Matched "
+                + pairs + " pairs in "
+                + Math.round(millis) + " ms ("
+                + Math.round(pairs / millis * 1000.0) + " pairs/s, "
+                + Math.round(pairs * nodeCosts.length * edgeCosts.length / millis * 1000.0) + " pair settings/s).\n");
+
+        /*
+         * Print Results
+         */
+
+        int bestN = 0;
+        int bestE = 0;
+        for (int n = 0; n < nodeCosts.length; n++) {
+            for (int e = 0; e < edgeCosts.length; e++) {
+                System.out.println("nodeCost " + nodeCosts[n] + ", edgeCost " + edgeCosts[e] + ": " + results[n][e]);
+                if (results[n][e].getMeanAveragePrecision() > results[bestN][bestE].getMeanAveragePrecision()) {
+                    bestN = n;
+                    bestE = e;
+                }
+            }
+        }
+        if (nodeCosts.length > 0 && edgeCosts.length > 0) {
+            System.out.println("\nBest: nodeCost " + nodeCosts[bestN] + ", edgeCost " + edgeCosts[bestE] + ": "
+                    + results[bestN][bestE]);
+        }
+    }
+
+    /*
+     * Retrieval quality for every combination of the node costs and edge costs, results[n][e] for nodeCosts[n] and
+     * edgeCosts[e].
+     */
+    public Evaluation.Result[][] sweep(double[] nodeCosts, double[] edgeCosts, int[] queries, int[] ks,
+                                       int parallelism) {
+        ThreadLocal<HEDTerms> workspace = ThreadLocal.withInitial(HEDTerms::new);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        long start = System.nanoTime();
+        Evaluation.Result[] results;
+        try {
+            results = pool.invoke(new SweepTask(nodeCosts, edgeCosts, queries, 0, queries.length, ks, workspace));
+        } finally {
+            pool.shutdown();
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        Evaluation.Result[][] grid = new Evaluation.Result[nodeCosts.length][edgeCosts.length];
+        for (int n = 0; n < nodeCosts.length; n++) {
+            for (int e = 0; e < edgeCosts.length; e++) {
+                grid[n][e] = results[n * edgeCosts.length + e];
+                grid[n][e].setMillis(millis);
+            }
+        }
+        return grid;
+    }
+
+    private class SweepTask extends RecursiveTask<Evaluation.Result[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private double[] nodeCosts;
+        private double[] edgeCosts;
+        private int[] queries;
+        private int from;
+        private int to;
+        private int[] ks;
+        private ThreadLocal<HEDTerms> workspace;
+
+        SweepTask(double[] nodeCosts, double[] edgeCosts, int[] queries, int from, int to, int[] ks,
+                  ThreadLocal<HEDTerms> workspace) {
+            this.nodeCosts = nodeCosts;
+            this.edgeCosts = edgeCosts;
+            this.queries = queries;
+            this.from = from;
+            this.to = to;
+            this.ks = ks;
+            this.workspace = workspace;
+        }
+
+        @Override
+        protected Evaluation.Result[] compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                SweepTask right = new SweepTask(nodeCosts, edgeCosts, queries, mid, to, ks, workspace);
+                right.fork();
+                Evaluation.Result[] left = new SweepTask(nodeCosts, edgeCosts, queries, from, mid, ks, workspace)
+                        .compute();
+                Evaluation.Result[] other = right.join();
+                for (int g = 0; g < left.length; g++) {
+                    left[g].add(other[g]);
+                }
+                return left;
+            }
+
+            int settings = nodeCosts.length * edgeCosts.length;
+            Evaluation.Result[] results = new Evaluation.Result[settings];
+            for (int g = 0; g < settings; g++) {
+                results[g] = new Evaluation.Result(ks);
+            }
+            if (to == from) {
+                return results;
+            }
+
+            // match the query with every word once, then compute the distances of all settings from the terms
+            int query = queries[from];
+            HEDTerms terms = workspace.get();
+            double[][] distances = new double[settings][corpus.size()];
+            double[] pairDistances = new double[nodeCosts.length];
+            for (int i = 0; i < corpus.size(); i++) {
+                if (i == query) {
+                    continue;
+                }
+                terms.compute(corpus.get(query), corpus.get(i));
+                for (int e = 0; e < edgeCosts.length; e++) {
+                    terms.distances(nodeCosts, edgeCosts[e], pairDistances);
+                    for (int n = 0; n < nodeCosts.length; n++) {
+                        distances[n * edgeCosts.length + e][i] = pairDistances[n];
+                    }
+                }
+            }
+            for (int g = 0; g < settings; g++) {
+                evaluation.score(query, distances[g], results[g]);
+            }
+            return results;
+        }
+    }
+
+}
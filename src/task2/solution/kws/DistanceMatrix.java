@@ -0,0 +1,295 @@
+package kws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * All-pairs HED matrix of a list of graphs, computed in parallel and stored in a memory-mapped file.
+ *
+ * The matrix is split into square tiles of TILE_SIZE x TILE_SIZE graph pairs. Since HED is symmetric up to
+ * rounding, only the tiles on and above the diagonal are computed, and each distance is written to (i,j) and (j,i).
+ * Each tile is matched by one worker thread with its own HED workspace, such that the graphs of the tile stay in
+ * cache while they are matched with each other.
+ *
+ * The matrix file holds n x n float values in row-major order (little-endian, without header), such that it can be
+ * mapped directly by other tools. The graph ids of the rows are written to a text file next to it (file + ".ids").
+ *
+ * Progress is checkpointed to a sidecar file (file + ".ckpt"): the finished tiles are recorded about every
+ * CHECKPOINT_MILLIS, after the matrix has been forced to disk. An interrupted run resumes with the tiles that were
+ * not recorded yet, provided the graphs, the tile size and the cost function are the same. The graphs are compared by
+ * their content hash (ResultCache.version), such that a graph file regenerated under the same id invalidates the
+ * checkpoint.
+ */
+public class DistanceMatrix {
+
+    public static final int TILE_SIZE = 64;
+    private static final long CHECKPOINT_MILLIS = 30000;
+
+    private static final int MAGIC = 0x4B444D32; // "KDM2"
+
+    private File file;
+    private File checkpointFile;
+    private List<KPackedGraph> graphs;
+    private KCost cost;
+    private int n;
+    private int tiles;
+    private String version;
+
+    // finished tiles, and the ones of them that are in the last checkpoint
+    private BitSet done = new BitSet();
+    private int checkpointed;
+    private long lastCheckpoint;
+
+    // the matrix is mapped in chunks of whole rows of at most 2 GB each
+    private MappedByteBuffer[] chunks;
+    private int rowsPerChunk;
+
+    public DistanceMatrix(File file, List<KPackedGraph> graphs, KCost cost) {
+        this.file = file;
+        this.graphs = graphs;
+        this.cost = cost;
+        checkpointFile = new File(file.getPath() + ".ckpt");
+        n = graphs.size();
+        tiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /*
+     * Number of tiles on and above the diagonal.
+     */
+    public int getTileCount() {
+        return tiles * (tiles + 1) / 2;
+    }
+
+    public synchronized int getDoneCount() {
+        return done.cardinality();
+    }
+
+    /*
+     * Compute all tiles that are not in the checkpoint yet, using the given number of threads.
+     * Returns the number of tiles computed by this call.
+     */
+    public int compute(int parallelism) throws IOException {
+        version = ResultCache.version(graphs);
+        boolean resume = readCheckpoint();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = (long) n * n * Float.BYTES;
+            if (!resume || channel.size() != length) {
+                done.clear();
+                channel.truncate(0);
+                writeIds();
+            }
+            map(channel, length);
+
+            // tiles that are not done, row by row on and above the diagonal
+            List<int[]> pending = new ArrayList<int[]>();
+            for (int ti = 0; ti < tiles; ti++) {
+                for (int tj = ti; tj < tiles; tj++) {
+                    if (!done.get(tile(ti, tj))) {
+                        pending.add(new int[]{ti, tj});
+                    }
+                }
+            }
+            checkpointed = done.cardinality();
+            lastCheckpoint = System.currentTimeMillis();
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            ThreadLocal<HED> workspace = ThreadLocal.withInitial(() -> new HED(cost));
+            try {
+                pool.invoke(new TileTask(pending, 0, pending.size(), workspace));
+            } finally {
+                pool.shutdown();
+            }
+            checkpoint();
+            return pending.size();
+        } finally {
+            chunks = null;
+        }
+    }
+
+    /*
+     * Distance between graph i and graph j, after compute().
+     */
+    public float get(int i, int j) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer value = ByteBuffer.allocate(Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(value, ((long) i * n + j) * Float.BYTES);
+            return value.getFloat(0);
+        }
+    }
+
+    private int tile(int ti, int tj) {
+        return ti * tiles + tj;
+    }
+
+    private void map(FileChannel channel, long length) throws IOException {
+        long rowBytes = (long) n * Float.BYTES;
+        rowsPerChunk = (int) Math.max(1, Math.min(n, Integer.MAX_VALUE / Math.max(rowBytes, 1)));
+        chunks = new MappedByteBuffer[(n + rowsPerChunk - 1) / rowsPerChunk];
+        for (int c = 0; c < chunks.length; c++) {
+            long start = c * rowsPerChunk * rowBytes;
+            long size = Math.min(length - start, rowsPerChunk * rowBytes);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void put(int i, int j, float distance) {
+        // absolute puts, the tiles of the workers do not overlap
+        chunks[i / rowsPerChunk].putFloat(((i % rowsPerChunk) * n + j) * Float.BYTES, distance);
+    }
+
+    private void match(HED hed, int ti, int tj) {
+        int toI = Math.min((ti + 1) * TILE_SIZE, n);
+        int toJ = Math.min((tj + 1) * TILE_SIZE, n);
+        for (int i = ti * TILE_SIZE; i < toI; i++) {
+            KPackedGraph g1 = graphs.get(i);
+            for (int j = Math.max(tj * TILE_SIZE, i); j < toJ; j++) {
+                float distance = (float) hed.match(g1, graphs.get(j));
+                put(i, j, distance);
+                put(j, i, distance);
+            }
+        }
+    }
+
+    private synchronized void finished(int ti, int tj) throws IOException {
+        done.set(tile(ti, tj));
+        if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_MILLIS) {
+            checkpoint();
+        }
+    }
+
+    /*
+     * Force the matrix to disk, then record the finished tiles.
+     */
+    private synchronized void checkpoint() throws IOException {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out);
+        byte[] bits = done.toByteArray();
+        out.writeInt(bits.length);
+        out.write(bits);
+        out.flush();
+
+        Path tmp = Paths.get(checkpointFile.getPath() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        AtomicFiles.replace(tmp, checkpointFile.toPath());
+        int count = done.cardinality();
+        System.out.println("    checkpoint " + count + " / " + getTileCount() + " tiles (+" + (count - checkpointed) + ")");
+        checkpointed = count;
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    /*
+     * Read the finished tiles of the checkpoint, returns false if there is none for these graphs and settings.
+     */
+    private boolean readCheckpoint() throws IOException {
+        if (!checkpointFile.isFile()) {
+            return false;
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(expected);
+        writeHeader(header);
+        header.flush();
+        byte[] expectedHeader = expected.toByteArray();
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpointFile.toPath()))) {
+            byte[] actualHeader = new byte[expectedHeader.length];
+            in.readFully(actualHeader);
+            if (!Arrays.equals(expectedHeader, actualHeader)) {
+                return false;
+            }
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            done = BitSet.valueOf(bits);
+            return true;
+        } catch (IOException e) {
+            System.err.println("    ignoring unreadable checkpoint " + checkpointFile + ": " + e);
+            return false;
+        }
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(TILE_SIZE);
+        out.writeDouble(cost.nodeDelIns());
+        out.writeDouble(cost.edgeDelIns());
+        out.writeInt(n);
+        out.writeUTF(version);
+    }
+
+    private void writeIds() throws IOException {
+        List<String> ids = new ArrayList<String>(n);
+        for (KPackedGraph graph : graphs) {
+            ids.add(graph.getGraphId());
+        }
+        Files.write(Paths.get(file.getPath() + ".ids"), ids, StandardCharsets.UTF_8);
+    }
+
+    private class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<int[]> pending;
+        private int from;
+        private int to;
+        private ThreadLocal<HED> workspace;
+
+        TileTask(List<int[]> pending, int from, int to, ThreadLocal<HED> workspace) {
+            this.pending = pending;
+            this.from = from;
+            this.to = to;
+            this.workspace = workspace;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(pending, from, mid, workspace), new TileTask(pending, mid, to, workspace));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            int[] tile = pending.get(from);
+            match(workspace.get(), tile[0], tile[1]);
+            try {
+                finished(tile[0], tile[1]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}
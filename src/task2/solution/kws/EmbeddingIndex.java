@@ -0,0 +1,150 @@
+package kws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Approximate candidate generation with fixed-length graph embeddings, as a prefilter for HED.
+ *
+ * Each word graph is embedded into a vector of DIMENSIONS floats:
+ * - a spatial histogram of its nodes on a grid of COLUMNS x ROWS cells of CELL pixels around the origin (the
+ *   coordinates are normalized to zero mean), each node spread bilinearly over the four nearest cell centers such
+ *   that small shifts change the vector only a little; nodes outside of the grid count for the border cells
+ * - the number of nodes of each degree 0 .. DEGREES - 1 (higher degrees count for the last one), weighted with
+ *   DEGREE_WEIGHT
+ *
+ * The histograms count nodes rather than fractions of nodes, such that graphs of different sizes are far apart.
+ * Like HED, which is normalized with the maximum edit distance, the Euclidean distance between two vectors is
+ * divided by the number of nodes of both graphs, which raises the recall of the exact top-10 at K = 200 from
+ * about 0.8 to 0.9. The vectors of the corpus are kept in a single float[] (row i at i * DIMENSIONS), and a query
+ * is compared with all of them in a linear scan. Only the K closest words are then matched with HED (search).
+ *
+ * The parameters are tuned on the 15 pages of the lab with the default costs, see PrefilterEvaluation for the
+ * recall at each K.
+ */
+public class EmbeddingIndex {
+
+    static final int COLUMNS = 20;
+    static final int ROWS = 4;
+    static final double CELL = 28.0;
+    static final int DEGREES = 5;
+    static final float DEGREE_WEIGHT = 0.25f;
+
+    public static final int DIMENSIONS = COLUMNS * ROWS + DEGREES;
+
+    private List<KPackedGraph> corpus;
+    private float[] vectors;
+    private int[] sizes;
+
+    public EmbeddingIndex(List<KPackedGraph> corpus) {
+        this.corpus = corpus;
+        vectors = new float[corpus.size() * DIMENSIONS];
+        sizes = new int[corpus.size()];
+        for (int i = 0; i < corpus.size(); i++) {
+            embed(corpus.get(i), vectors, i * DIMENSIONS);
+            sizes[i] = corpus.get(i).size();
+        }
+    }
+
+    public List<KPackedGraph> getCorpus() {
+        return corpus;
+    }
+
+    public int size() {
+        return corpus.size();
+    }
+
+    /*
+     * Embedding of a graph.
+     */
+    public static float[] embed(KPackedGraph graph) {
+        float[] vector = new float[DIMENSIONS];
+        embed(graph, vector, 0);
+        return vector;
+    }
+
+    /*
+     * Write the embedding of a graph to vectors[offset .. offset + DIMENSIONS - 1].
+     */
+    static void embed(KPackedGraph graph, float[] vectors, int offset) {
+        Arrays.fill(vectors, offset, offset + DIMENSIONS, 0f);
+        for (int i = 0; i < graph.size(); i++) {
+            // position relative to the cell centers, clamped to the grid
+            double column = clamp(graph.getX(i) / CELL + 0.5 * COLUMNS - 0.5, COLUMNS - 1);
+            double row = clamp(graph.getY(i) / CELL + 0.5 * ROWS - 0.5, ROWS - 1);
+            int c0 = Math.min((int) column, COLUMNS - 2);
+            int r0 = Math.min((int) row, ROWS - 2);
+            float wc = (float) (column - c0);
+            float wr = (float) (row - r0);
+            int cell = offset + r0 * COLUMNS + c0;
+            vectors[cell] += (1 - wc) * (1 - wr);
+            vectors[cell + 1] += wc * (1 - wr);
+            vectors[cell + COLUMNS] += (1 - wc) * wr;
+            vectors[cell + COLUMNS + 1] += wc * wr;
+
+            vectors[offset + COLUMNS * ROWS + Math.min(graph.degree(i), DEGREES - 1)] += DEGREE_WEIGHT;
+        }
+    }
+
+    private static double clamp(double value, double max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+    /*
+     * Distance between the embedding of a graph with the given number of nodes and the one of corpus graph i.
+     */
+    public float distance(float[] vector, int size, int i) {
+        return (float) Math.sqrt(squaredDistance(vector, i)) / Math.max(size + sizes[i], 1);
+    }
+
+    /*
+     * Squared Euclidean distance between a vector and the embedding of corpus graph i.
+     */
+    public float squaredDistance(float[] vector, int i) {
+        float[] vectors = this.vectors;
+        int offset = i * DIMENSIONS;
+        float sum = 0;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float diff = vector[d] - vectors[offset + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /*
+     * Corpus indices of the k words closest to the query in the embedding, closest first (ties by index).
+     */
+    public int[] candidates(KPackedGraph query, int k) {
+        float[] vector = embed(query);
+        TopN top = new TopN(k);
+        for (int i = 0; i < corpus.size(); i++) {
+            float distance = distance(vector, query.size(), i);
+            if (distance <= top.threshold()) {
+                top.offer(i, distance);
+            }
+        }
+        return top.sortedIndices();
+    }
+
+    /*
+     * Match the query with HED against its k candidates only and return the topN closest ones. The results are the
+     * same as the ones of engine.search over the whole corpus, as long as these are among the candidates.
+     */
+    public List<MatchEngine.Match> search(KPackedGraph query, int k, MatchEngine engine, int topN,
+                                          MatchEngine.Stats stats) {
+        // candidates in corpus order, such that equal distances are ranked as in the whole corpus
+        int[] candidates = candidates(query, k);
+        Arrays.sort(candidates);
+        List<KPackedGraph> words = new ArrayList<KPackedGraph>(candidates.length);
+        for (int i : candidates) {
+            words.add(corpus.get(i));
+        }
+        List<MatchEngine.Match> matches = new ArrayList<MatchEngine.Match>();
+        for (MatchEngine.Match match : engine.search(query, words, topN, stats)) {
+            matches.add(new MatchEngine.Match(candidates[match.getIndex()], match.getGraphId(), match.getDistance()));
+        }
+        return matches;
+    }
+
+}
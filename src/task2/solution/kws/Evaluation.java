@@ -0,0 +1,401 @@
+package kws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Retrieval quality of keyword spotting, measured with the transcription ground truth.
+ *
+ * Every word class (transcription) that occurs at least twice among the word graphs is used as a query, either
+ * with its first occurrence or with every occurrence. Each query is matched against all other words, and the
+ * words of the same class are the relevant results. The quality is reported as mean average precision (mAP) and
+ * mean precision at k (P@k) over all queries.
+ *
+ * The queries are evaluated in parallel, each worker thread with its own HED. Since mAP needs the complete
+ * ranking, every pair is matched (no pruning). With re-ranking, the best candidates of HED are ranked by their
+ * BipartiteGED instead, ahead of the other words in HED order, as by MatchEngine.searchReranked.
+ *
+ * Usage: Evaluation [pathOut] [transcription]
+ */
+public class Evaluation {
+
+    private static final String FILE_TRANSCRIPTION = "data/ground-truth/transcription.txt";
+
+    private List<KPackedGraph> corpus;
+    private int[] classes;
+    private int[] classSizes;
+    private int rerank;
+
+    /*
+     * The transcription maps word ids to word classes, words without transcription are never relevant.
+     */
+    public Evaluation(List<KPackedGraph> corpus, Map<String, String> transcription) {
+        this.corpus = corpus;
+        Map<String, Integer> classIds = new HashMap<String, Integer>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        classes = new int[corpus.size()];
+        for (int i = 0; i < corpus.size(); i++) {
+            String word = transcription.get(corpus.get(i).getGraphId());
+            if (word == null) {
+                classes[i] = -1;
+                continue;
+            }
+            Integer classId = classIds.get(word);
+            if (classId == null) {
+                classId = classIds.size();
+                classIds.put(word, classId);
+                sizes.add(0);
+            }
+            classes[i] = classId;
+            sizes.set(classId, sizes.get(classId) + 1);
+        }
+        classSizes = new int[sizes.size()];
+        for (int c = 0; c < classSizes.length; c++) {
+            classSizes[c] = sizes.get(c);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Settings, see Main
+         */
+
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+        String pathTranscription = FILE_TRANSCRIPTION;
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        double nodeCost = 25.0;
+        double edgeCost = 50.0;
+
+        boolean allInstances = false; // every occurrence of a word class as a query, instead of the first one only
+        int maxQueries = 0; // evaluate only this many queries, evenly spread over the classes (0 for all)
+        int[] ks = {1, 5, 10};
+        int rerank = 0; // re-rank this many best candidates of HED with the BipartiteGED (0 for none)
+        boolean compact = false; // 16-bit fixed-point graphs (see KCompactGraph)
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useStore = true;
+
+        if (args.length > 0) {
+            pathOut = args[0];
+        }
+        if (args.length > 1) {
+            pathTranscription = args[1];
+        }
+
+        /*
+         * Read Graphs
+         */
+
+        System.out.println("Reading page graphs ...");
+        double startTime = System.currentTimeMillis();
+
+        List<KPackedGraph> words = Main.getWords(pathOut, pageIds, threads, useStore);
+        if (compact) {
+            words = KCompactGraph.compact(words);
+        }
+        Evaluation evaluation = new Evaluation(words, readTranscription(new File(pathTranscription)));
+        evaluation.setRerank(rerank);
+        int[] queries = evaluation.queries(allInstances, maxQueries);
+
+        System.out.println("... done. Read "
+                + words.size() + " graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Evaluate
+         */
+
+        System.out.println("Evaluating " + queries.length + " queries against " + words.size() + " words ...");
+        Result result = evaluation.evaluate(new KCost(nodeCost, edgeCost), queries, ks, threads);
+        System.out.println("... done. Matched "
+                + result.getPairs() + " pairs in "
+                + Math.round(result.getMillis()) + " ms ("
+                + Math.round(result.getPairs() / result.getMillis() * 1000.0) + " pairs/s, "
+                + Math.round(result.getQueries() / result.getMillis() * 1000.0 * 100.0) / 100.0 + " queries/s).\n");
+
+        System.out.println(result);
+
+        Metrics.printSummary(System.out);
+    }
+
+    /*
+     * Read the transcription: one word per line, word id and transcription separated by a space.
+     */
+    public static Map<String, String> readTranscription(File file) throws IOException {
+        Map<String, String> transcription = new LinkedHashMap<String, String>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 2) {
+                transcription.put(fields[0], fields[1]);
+            }
+        }
+        return transcription;
+    }
+
+    /*
+     * Corpus indices of the queries: the first occurrence (or all occurrences) of every class that occurs at least
+     * twice, in corpus order. With maxQueries > 0, only that many queries are taken, evenly spread over the list.
+     */
+    public int[] queries(boolean allInstances, int maxQueries) {
+        List<Integer> queries = new ArrayList<Integer>();
+        boolean[] seen = new boolean[classSizes.length];
+        for (int i = 0; i < corpus.size(); i++) {
+            int c = classes[i];
+            if (c >= 0 && classSizes[c] >= 2 && (allInstances || !seen[c])) {
+                queries.add(i);
+                seen[c] = true;
+            }
+        }
+        int count = maxQueries > 0 ? Math.min(maxQueries, queries.size()) : queries.size();
+        int[] selected = new int[count];
+        for (int q = 0; q < count; q++) {
+            selected[q] = queries.get((int) ((long) q * queries.size() / count));
+        }
+        return selected;
+    }
+
+    public int getRerank() {
+        return rerank;
+    }
+
+    /*
+     * Rank this many best candidates of HED by their BipartiteGED (0 for none).
+     */
+    public void setRerank(int rerank) {
+        this.rerank = rerank;
+    }
+
+    /*
+     * Match every query against all other words of the corpus and measure the retrieval quality.
+     */
+    public Result evaluate(KCost cost, int[] queries, int[] ks, int parallelism) {
+        ThreadLocal<HED> workspace = ThreadLocal.withInitial(() -> new HED(cost));
+        ThreadLocal<BipartiteGED> rerankWorkspace = ThreadLocal.withInitial(() -> new BipartiteGED(cost));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        long start = System.nanoTime();
+        Result result;
+        try {
+            result = pool.invoke(new QueryTask(queries, 0, queries.length, ks, workspace, rerankWorkspace));
+        } finally {
+            pool.shutdown();
+        }
+        result.setMillis((System.nanoTime() - start) / 1e6);
+        return result;
+    }
+
+    /*
+     * Average precision and precision at each k of a single query, added to result.
+     */
+    private void evaluate(HED hed, ThreadLocal<BipartiteGED> rerankWorkspace, int query, int[] ks, Result result) {
+        int n = corpus.size();
+        KPackedGraph graph = corpus.get(query);
+        double[] distances = new double[n];
+        TopN top = new TopN(Math.min(rerank, n - 1));
+        for (int i = 0; i < n; i++) {
+            if (i != query) {
+                distances[i] = hed.match(graph, corpus.get(i));
+                top.offer(i, distances[i]);
+            }
+        }
+
+        // the candidates by their BipartiteGED, the other words behind them by HED
+        if (top.size() > 0) {
+            BipartiteGED bipartite = rerankWorkspace.get();
+            int[] candidates = new int[top.size()];
+            top.sort(candidates, new double[candidates.length]);
+            boolean[] reranked = new boolean[n];
+            double behind = 0;
+            for (int c : candidates) {
+                distances[c] = bipartite.match(graph, corpus.get(c));
+                reranked[c] = true;
+                behind = Math.max(behind, distances[c] + 1);
+            }
+            for (int i = 0; i < n; i++) {
+                if (!reranked[i]) {
+                    distances[i] += behind;
+                }
+            }
+        }
+        score(query, distances, result);
+    }
+
+    /*
+     * Rank all other words by their distance to the query (distances[i] for word i, ties by index) and add the
+     * average precision and the precision at each cut-off of result (Result.getKs) of the query to result.
+     */
+    void score(int query, double[] distances, Result result) {
+        int[] ks = result.ks;
+        int n = corpus.size();
+        Integer[] ranking = new Integer[n - 1];
+        int r = 0;
+        for (int i = 0; i < n; i++) {
+            if (i != query) {
+                ranking[r++] = i;
+            }
+        }
+        Arrays.sort(ranking, (i1, i2) -> {
+            int c = Double.compare(distances[i1], distances[i2]);
+            return c != 0 ? c : Integer.compare(i1, i2);
+        });
+
+        int relevant = relevantCount(query);
+        int found = 0;
+        double precisionSum = 0;
+        int k = 0;
+        for (int rank = 1; rank <= ranking.length; rank++) {
+            if (classes[ranking[rank - 1]] == classes[query]) {
+                found++;
+                precisionSum += (double) found / rank;
+            }
+            while (k < ks.length && ks[k] == rank) {
+                result.precision[k++] += (double) found / rank;
+            }
+        }
+        for (; k < ks.length; k++) {
+            result.precision[k] += (double) found / ks[k];
+        }
+        result.averagePrecision += relevant == 0 ? 0 : precisionSum / relevant;
+        result.queries++;
+        result.pairs += n - 1;
+    }
+
+    /*
+     * True if word i is relevant for the query, i.e. another word of the same class.
+     */
+    boolean isRelevant(int query, int i) {
+        return i != query && classes[i] == classes[query];
+    }
+
+    /*
+     * Number of words that are relevant for the query.
+     */
+    int relevantCount(int query) {
+        return classSizes[classes[query]] - 1;
+    }
+
+    private class QueryTask extends RecursiveTask<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private int[] queries;
+        private int from;
+        private int to;
+        private int[] ks;
+        private ThreadLocal<HED> workspace;
+        private ThreadLocal<BipartiteGED> rerankWorkspace;
+
+        QueryTask(int[] queries, int from, int to, int[] ks, ThreadLocal<HED> workspace,
+                  ThreadLocal<BipartiteGED> rerankWorkspace) {
+            this.queries = queries;
+            this.from = from;
+            this.to = to;
+            this.ks = ks;
+            this.workspace = workspace;
+            this.rerankWorkspace = rerankWorkspace;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                QueryTask right = new QueryTask(queries, mid, to, ks, workspace, rerankWorkspace);
+                right.fork();
+                Result left = new QueryTask(queries, from, mid, ks, workspace, rerankWorkspace).compute();
+                left.add(right.join());
+                return left;
+            }
+            Result result = new Result(ks);
+            if (to > from) {
+                evaluate(workspace.get(), rerankWorkspace, queries[from], ks, result);
+            }
+            return result;
+        }
+    }
+
+    /*
+     * Mean average precision and mean precision at k over the queries, with the number of pairs matched and the
+     * time it took. The cut-offs are kept in ascending order, whatever the order they are given in.
+     */
+    public static class Result {
+
+        private int[] ks;
+        private double[] precision;
+        private double averagePrecision;
+        private int queries;
+        private long pairs;
+        private double millis;
+
+        Result(int[] ks) {
+            this.ks = ks.clone();
+            Arrays.sort(this.ks);
+            if (this.ks.length > 0 && this.ks[0] < 1) {
+                throw new IllegalArgumentException("k must be at least 1: " + this.ks[0]);
+            }
+            precision = new double[ks.length];
+        }
+
+        void setMillis(double millis) {
+            this.millis = millis;
+        }
+
+        void add(Result other) {
+            for (int k = 0; k < ks.length; k++) {
+                precision[k] += other.precision[k];
+            }
+            averagePrecision += other.averagePrecision;
+            queries += other.queries;
+            pairs += other.pairs;
+        }
+
+        public double getMeanAveragePrecision() {
+            return queries == 0 ? 0 : averagePrecision / queries;
+        }
+
+        /*
+         * Mean precision at the k-th of the cut-offs (getKs).
+         */
+        public double getPrecision(int k) {
+            return queries == 0 ? 0 : precision[k] / queries;
+        }
+
+        public int[] getKs() {
+            return ks;
+        }
+
+        public int getQueries() {
+            return queries;
+        }
+
+        public long getPairs() {
+            return pairs;
+        }
+
+        public double getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append("mAP ").append(Math.round(getMeanAveragePrecision() * 10000.0) / 10000.0);
+            for (int k = 0; k < ks.length; k++) {
+                s.append(", P@").append(ks[k]).append(" ").append(Math.round(getPrecision(k) * 10000.0) / 10000.0);
+            }
+            return s.append(" (").append(queries).append(" queries)").toString();
+        }
+    }
+
+}
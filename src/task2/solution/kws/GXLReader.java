@@ -0,0 +1,218 @@
+package kws;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Streaming (StAX) reader for the GXL word graphs of Task 1.
+ *
+ * The graph is built in a single pass over the XML events without creating a DOM. The XMLInputFactory is
+ * expensive to create and is therefore kept per thread, such that concurrent loaders never share a parser.
+ *
+ * The resulting graph is the same as with the former DOM-based reader: nodes without an x or y attribute are
+ * skipped, an inverse edge (b,a) is added for each edge (a,b), the nodes are added in the iteration order of a
+ * HashMap keyed by the GXL node id, and the graph is normalized. The graph is built either as a KGraph or
+ * directly as a KPackedGraph.
+ */
+public class GXLReader {
+
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(GXLReader::createFactory);
+
+    private static XMLInputFactory createFactory() {
+        // skip DTD to speed up XML parsing
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /*
+     * Read the GXL file and build the normalized keypoint graph.
+     */
+    public static KGraph read(File gxl, String graphId) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(gxl))) {
+            return read(in, graphId);
+        }
+    }
+
+    /*
+     * Read a GXL document from a stream and build the normalized keypoint graph.
+     */
+    public static KGraph read(InputStream in, String graphId) throws IOException {
+        Parsed parsed = parse(in, graphId);
+
+        // create the nodes and add the edges
+        KNode[] nodes = new KNode[parsed.x.size()];
+        for (int i : parsed.index.values()) {
+            nodes[i] = new KNode(parsed.x.get(i), parsed.y.get(i));
+        }
+        for (int e = 0; e < parsed.edges.size(); e += 2) {
+            KNode node1 = nodes[parsed.edges.get(e)];
+            KNode node2 = nodes[parsed.edges.get(e + 1)];
+            node1.addEdge(node2); // for each edge (a,b) ...
+            node2.addEdge(node1); // ... add an inverse edge (b,a)
+        }
+
+        // create a graph and add the nodes
+        KGraph graph = new KGraph(graphId);
+        for (int i : parsed.index.values()) {
+            graph.addNode(nodes[i]);
+        }
+
+        // normalize the graph and return the result
+        // normalization centers the node labels, such that they have zero mean (0,0) afterwards
+        graph.normalize();
+        return graph;
+    }
+
+    /*
+     * Read the GXL file and build the normalized packed graph.
+     */
+    public static KPackedGraph readPacked(File gxl, String graphId) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(gxl))) {
+            return readPacked(in, graphId);
+        }
+    }
+
+    /*
+     * Read a GXL document from a stream and build the normalized packed graph.
+     * Nodes, edges and coordinates are exactly the ones of read(InputStream, String), without creating KNode
+     * and KEdge objects.
+     */
+    public static KPackedGraph readPacked(InputStream in, String graphId) throws IOException {
+        long start = Metrics.start();
+        Parsed parsed = parse(in, graphId);
+
+        // position of each node in the graph, in the same order as read(InputStream, String)
+        int n = parsed.index.size();
+        int[] position = new int[parsed.x.size()];
+        double[] x = new double[n];
+        double[] y = new double[n];
+        int p = 0;
+        for (int i : parsed.index.values()) {
+            position[i] = p;
+            x[p] = parsed.x.get(i);
+            y[p] = parsed.y.get(i);
+            p++;
+        }
+
+        // count the edges of each node, then fill the adjacency in the order of the GXL edges
+        int[] offsets = new int[n + 1];
+        for (int e = 0; e < parsed.edges.size(); e++) {
+            offsets[position[parsed.edges.get(e)] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] adjacency = new int[offsets[n]];
+        for (int e = 0; e < parsed.edges.size(); e += 2) {
+            int a = position[parsed.edges.get(e)];
+            int b = position[parsed.edges.get(e + 1)];
+            adjacency[next[a]++] = b; // for each edge (a,b) ...
+            adjacency[next[b]++] = a; // ... add an inverse edge (b,a)
+        }
+
+        KDoubleGraph graph = new KDoubleGraph(graphId, x, y, offsets, adjacency);
+        Metrics.stop(Metrics.PARSE, start);
+        start = Metrics.start();
+        graph.normalize();
+        Metrics.stop(Metrics.NORMALIZE, start);
+        return graph;
+    }
+
+    /*
+     * Nodes with their coordinates in document order and edges as pairs of node indices.
+     * Nodes are indexed in a HashMap by their GXL id, its iteration order defines the node order of the graph.
+     */
+    private static class Parsed {
+
+        private Map<String, Integer> index = new HashMap<String, Integer>();
+        private List<Double> x = new ArrayList<Double>();
+        private List<Double> y = new ArrayList<Double>();
+        private List<Integer> edges = new ArrayList<Integer>();
+    }
+
+    private static Parsed parse(InputStream in, String graphId) throws IOException {
+        Parsed parsed = new Parsed();
+        List<String> edges = new ArrayList<String>();
+        try {
+            XMLStreamReader reader = FACTORY.get().createXMLStreamReader(in);
+            try {
+                String nodeId = null;
+                String attrName = null;
+                String x = null;
+                String y = null;
+                StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (name.equals("node")) {
+                            nodeId = reader.getAttributeValue(null, "id");
+                            x = null;
+                            y = null;
+                        } else if (name.equals("attr") && nodeId != null) {
+                            attrName = reader.getAttributeValue(null, "name");
+                            text.setLength(0);
+                        } else if (name.equals("edge")) {
+                            edges.add(reader.getAttributeValue(null, "from"));
+                            edges.add(reader.getAttributeValue(null, "to"));
+                        }
+                    } else if (event == XMLStreamConstants.CHARACTERS && attrName != null) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (name.equals("attr") && attrName != null) {
+                            // the first attribute with a given name wins
+                            if (attrName.equals("x") && x == null) {
+                                x = text.toString();
+                            } else if (attrName.equals("y") && y == null) {
+                                y = text.toString();
+                            }
+                            attrName = null;
+                        } else if (name.equals("node") && nodeId != null) {
+                            if (x != null && y != null) {
+                                parsed.index.put(nodeId, parsed.x.size());
+                                parsed.x.add(Double.parseDouble(x));
+                                parsed.y.add(Double.parseDouble(y));
+                            }
+                            nodeId = null;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IOException("Cannot parse graph " + graphId + ": " + e.getMessage(), e);
+        }
+
+        // resolve the edges once all nodes are known, since GXL does not require nodes to precede edges
+        for (int i = 0; i < edges.size(); i += 2) {
+            Integer node1 = parsed.index.get(edges.get(i));
+            Integer node2 = parsed.index.get(edges.get(i + 1));
+            if (node1 == null || node2 == null) {
+                throw new IOException("Cannot parse graph " + graphId + ": edge ("
+                        + edges.get(i) + "," + edges.get(i + 1) + ") refers to an unknown node");
+            }
+            parsed.edges.add(node1);
+            parsed.edges.add(node2);
+        }
+        return parsed;
+    }
+
+}
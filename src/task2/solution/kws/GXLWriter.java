@@ -0,0 +1,60 @@
+package kws;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Writer for keypoint graphs in the GXL format of Task 1, such that GXLReader reads them back.
+ *
+ * Nodes are named <graph id>_<index> with float attributes x and y, and each undirected edge is written once,
+ * from the node with the smaller index. The file is written to a temporary file first and then moved into place,
+ * such that readers (e.g. a CorpusWatcher) never see a partial document.
+ */
+public class GXLWriter {
+
+    private GXLWriter() {
+    }
+
+    public static void write(KPackedGraph graph, File gxl) throws IOException {
+        File tmp = new File(gxl.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()),
+                StandardCharsets.UTF_8))) {
+            write(graph, writer);
+        }
+        AtomicFiles.replace(tmp.toPath(), gxl.toPath());
+    }
+
+    public static void write(KPackedGraph graph, Writer writer) throws IOException {
+        String id = escape(graph.getGraphId());
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<!DOCTYPE gxl SYSTEM \"http://www.gupro.de/GXL/gxl-1.0.dtd\">\n");
+        writer.write("<gxl>\n");
+        writer.write("\t<graph edgeids=\"false\" edgemode=\"undirected\" id=\"" + id + "\">\n");
+        for (int i = 0; i < graph.size(); i++) {
+            writer.write("\t\t<node id=\"" + id + "_" + i + "\">\n");
+            writer.write("\t\t\t<attr name=\"x\">\n\t\t\t\t<float>" + graph.getX(i) + "</float>\n\t\t\t</attr>\n");
+            writer.write("\t\t\t<attr name=\"y\">\n\t\t\t\t<float>" + graph.getY(i) + "</float>\n\t\t\t</attr>\n");
+            writer.write("\t\t</node>\n");
+        }
+        for (int i = 0; i < graph.size(); i++) {
+            for (int e = graph.firstEdge(i); e < graph.firstEdge(i + 1); e++) {
+                int j = graph.goal(e);
+                if (i < j) {
+                    writer.write("\t\t<edge from=\"" + id + "_" + i + "\" to=\"" + id + "_" + j + "\"/>\n");
+                }
+            }
+        }
+        writer.write("\t</graph>\n");
+        writer.write("</gxl>\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+}
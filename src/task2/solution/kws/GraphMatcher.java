@@ -0,0 +1,16 @@
+package kws;
+
+/*
+ * Approximation of the graph edit distance between two keypoint graphs under a KCost, normalized with the maximum
+ * graph edit distance (deleting g1 and inserting g2), such that distances of different matchers are comparable.
+ *
+ * - HED is a lower bound of the graph edit distance in O(n^2), fast enough for the whole corpus
+ * - BipartiteGED is an upper bound in O(n^3), tighter and used to re-rank the best candidates of HED
+ *
+ * Implementations keep scratch buffers between calls and are per-thread workspaces.
+ */
+public interface GraphMatcher {
+
+    double match(KPackedGraph g1, KPackedGraph g2);
+
+}
@@ -0,0 +1,384 @@
+package kws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Binary store for the word graphs of several pages.
+ *
+ * The normalized graphs of all pages (graph ids, node coordinates and adjacency) are compiled once into a single
+ * file, which is then loaded with a memory-mapped FileChannel instead of parsing thousands of GXL files.
+ * Each page is kept in its own segment together with a manifest (name, modification time and size of every parsed
+ * GXL file of the page). A page is rebuilt if its manifest differs from the graphs_binary directory, the segments of
+ * all other pages are copied unchanged. Files that could not be parsed are not in the manifest, so their page is
+ * parsed again, and the failures reported again, until they are fixed or removed.
+ *
+ * File layout (big-endian):
+ * - header: magic, version, number of pages, length of the directory
+ * - directory: page id, offset and length of the segment (relative to the end of the directory) for each page
+ * - segments: manifest entries (name, modification time, size), then the graphs (id, number of nodes,
+ *   x coordinates, y coordinates, degrees, goal node indices of the edges)
+ */
+public class GraphStore {
+
+    private static final String DIR_GXL = "graphs_binary";
+    private static final String TYPE_GXL = "xml";
+
+    private static final int MAGIC = 0x4B475331; // "KGS1"
+    private static final int VERSION = 2; // 1 recorded files that failed to parse in the manifest, with a flag
+
+    private File file;
+
+    public GraphStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /*
+     * Bring the store up to date with the GXL files of the given pages.
+     * Returns the ids of the pages that were rebuilt (empty if the store was up to date).
+     * Files that could not be parsed are added to failures and left out of the manifest, such that they are parsed
+     * and reported again by the next update.
+     */
+    public List<String> update(String pathOut, String[] pageIds, CorpusLoader loader,
+                               List<CorpusLoader.Failure> failures) throws IOException {
+
+        // compare the current GXL files with the manifests in the store
+        Map<String, byte[]> segments = readSegments();
+        Map<String, Manifest> manifests = new HashMap<String, Manifest>();
+        List<String> stale = new ArrayList<String>();
+        for (String pageId : pageIds) {
+            Manifest manifest = Manifest.scan(Paths.get(pathOut, pageId, DIR_GXL).toFile());
+            manifests.put(pageId, manifest);
+            byte[] segment = segments.get(pageId);
+            if (segment == null || !manifest.equals(Manifest.decode(ByteBuffer.wrap(segment)))) {
+                stale.add(pageId);
+            }
+        }
+        if (stale.isEmpty() && segments.keySet().equals(new HashSet<String>(Arrays.asList(pageIds)))) {
+            return stale;
+        }
+
+        // re-parse the stale pages only
+        if (!stale.isEmpty()) {
+            CorpusLoader.Result loaded = loader.load(pathOut, stale.toArray(new String[0]));
+            failures.addAll(loaded.getFailures());
+            Map<String, KPackedGraph> graphs = new HashMap<String, KPackedGraph>();
+            for (KPackedGraph graph : loaded.getGraphs()) {
+                graphs.put(graph.getGraphId(), graph);
+            }
+            for (String pageId : stale) {
+                segments.put(pageId, encodeSegment(manifests.get(pageId), graphs));
+            }
+        }
+
+        // write the new store next to the old one and replace it
+        Map<String, byte[]> pages = new LinkedHashMap<String, byte[]>();
+        for (String pageId : pageIds) {
+            pages.put(pageId, segments.get(pageId));
+        }
+        write(pages);
+        return stale;
+    }
+
+    /*
+     * Load all graphs of the store, in page order and file-name order within a page.
+     */
+    public List<KPackedGraph> load() throws IOException {
+        Metrics.LoadEvent event = new Metrics.LoadEvent();
+        event.begin();
+        long start = Metrics.start();
+        List<KPackedGraph> graphs = new ArrayList<KPackedGraph>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Graph store exceeds 2 GB: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (Map.Entry<String, long[]> page : readDirectory(buffer).entrySet()) {
+                long[] location = page.getValue();
+                buffer.position((int) location[0]);
+                Manifest manifest = Manifest.decode(buffer);
+                int count = buffer.getInt();
+                for (int g = 0; g < count; g++) {
+                    graphs.add(decodeGraph(buffer));
+                }
+                if (buffer.position() != location[0] + location[1] || count > manifest.names.length) {
+                    throw new IOException("Corrupt segment for page " + page.getKey() + " in " + file);
+                }
+            }
+        }
+        Metrics.stop(Metrics.STORE, start);
+        if (event.shouldCommit()) {
+            event.source = "store";
+            event.graphs = graphs.size();
+            event.commit();
+        }
+        return graphs;
+    }
+
+    /*
+     * Segments of the existing store by page id (empty if there is no valid store).
+     * The old store is read through the channel rather than mapped, such that it can be replaced afterwards.
+     */
+    private Map<String, byte[]> readSegments() throws IOException {
+        Map<String, byte[]> segments = new HashMap<String, byte[]>();
+        if (!file.isFile()) {
+            return segments;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return segments;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read the whole store
+            }
+            buffer.flip();
+            Map<String, long[]> directory;
+            try {
+                directory = readDirectory(buffer);
+            } catch (IOException | RuntimeException e) {
+                return segments; // unknown format, rebuild everything
+            }
+            for (Map.Entry<String, long[]> page : directory.entrySet()) {
+                byte[] segment = new byte[(int) page.getValue()[1]];
+                buffer.position((int) page.getValue()[0]);
+                buffer.get(segment);
+                segments.put(page.getKey(), segment);
+            }
+        }
+        return segments;
+    }
+
+    /*
+     * Absolute offset and length of each page segment, in page order.
+     */
+    private Map<String, long[]> readDirectory(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a graph store: " + file);
+        }
+        int pageCount = buffer.getInt();
+        int directoryLength = buffer.getInt();
+        long dataStart = buffer.position() + directoryLength;
+        Map<String, long[]> directory = new LinkedHashMap<String, long[]>();
+        for (int p = 0; p < pageCount; p++) {
+            String pageId = getString(buffer);
+            long offset = buffer.getLong();
+            long length = buffer.getLong();
+            if (dataStart + offset + length > buffer.limit()) {
+                throw new IOException("Truncated graph store: " + file);
+            }
+            directory.put(pageId, new long[]{dataStart + offset, length});
+        }
+        return directory;
+    }
+
+    private void write(Map<String, byte[]> pages) throws IOException {
+        ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(directoryBytes);
+        long offset = 0;
+        for (Map.Entry<String, byte[]> page : pages.entrySet()) {
+            putString(directory, page.getKey());
+            directory.writeLong(offset);
+            directory.writeLong(page.getValue().length);
+            offset += page.getValue().length;
+        }
+        directory.flush();
+
+        Path tmp = Paths.get(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(MAGIC).putInt(VERSION).putInt(pages.size()).putInt(directoryBytes.size());
+            header.flip();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(directoryBytes.toByteArray()));
+            for (byte[] segment : pages.values()) {
+                writeFully(channel, ByteBuffer.wrap(segment));
+            }
+        }
+        AtomicFiles.replace(tmp, file.toPath());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] encodeSegment(Manifest manifest, Map<String, KPackedGraph> graphs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<KPackedGraph> present = new ArrayList<KPackedGraph>();
+        boolean[] parsed = new boolean[manifest.names.length];
+        for (int f = 0; f < manifest.names.length; f++) {
+            KPackedGraph graph = graphs.get(graphId(manifest.names[f]));
+            if (graph != null) {
+                present.add(graph);
+                parsed[f] = true;
+            }
+        }
+        manifest.encode(out, parsed);
+        out.writeInt(present.size());
+        for (KPackedGraph graph : present) {
+            encodeGraph(out, graph);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void encodeGraph(DataOutputStream out, KPackedGraph graph) throws IOException {
+        putString(out, graph.getGraphId());
+        int n = graph.size();
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(graph.getX(i));
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(graph.getY(i));
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeInt(graph.degree(i));
+        }
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            out.writeInt(graph.goal(e));
+        }
+    }
+
+    /*
+     * Rebuild a normalized graph. The coordinates are stored after normalization and are not normalized again.
+     */
+    private static KPackedGraph decodeGraph(ByteBuffer buffer) {
+        String graphId = getString(buffer);
+        int n = buffer.getInt();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        buffer.asDoubleBuffer().get(x).get(y);
+        buffer.position(buffer.position() + 16 * n);
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] = offsets[i] + buffer.getInt();
+        }
+        int[] adjacency = new int[offsets[n]];
+        buffer.asIntBuffer().get(adjacency);
+        buffer.position(buffer.position() + 4 * adjacency.length);
+        return new KDoubleGraph(graphId, x, y, offsets, adjacency);
+    }
+
+    private static String graphId(String gxlName) {
+        return gxlName.substring(0, gxlName.indexOf(TYPE_GXL) - 1);
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Name, modification time and size of the GXL files of a page, sorted by name.
+     */
+    private static class Manifest {
+
+        private String[] names;
+        private long[] modified;
+        private long[] sizes;
+
+        Manifest(String[] names, long[] modified, long[] sizes) {
+            this.names = names;
+            this.modified = modified;
+            this.sizes = sizes;
+        }
+
+        static Manifest scan(File dir) {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(TYPE_GXL));
+            if (files == null) {
+                files = new File[0];
+            }
+            Arrays.sort(files);
+            String[] names = new String[files.length];
+            long[] modified = new long[files.length];
+            long[] sizes = new long[files.length];
+            for (int f = 0; f < files.length; f++) {
+                names[f] = files[f].getName();
+                modified[f] = files[f].lastModified();
+                sizes[f] = files[f].length();
+            }
+            return new Manifest(names, modified, sizes);
+        }
+
+        static Manifest decode(ByteBuffer buffer) {
+            int count = buffer.getInt();
+            String[] names = new String[count];
+            long[] modified = new long[count];
+            long[] sizes = new long[count];
+            for (int f = 0; f < count; f++) {
+                names[f] = getString(buffer);
+                modified[f] = buffer.getLong();
+                sizes[f] = buffer.getLong();
+            }
+            return new Manifest(names, modified, sizes);
+        }
+
+        /*
+         * Write the entries of the parsed files only.
+         */
+        void encode(DataOutputStream out, boolean[] parsed) throws IOException {
+            int count = 0;
+            for (boolean p : parsed) {
+                count += p ? 1 : 0;
+            }
+            out.writeInt(count);
+            for (int f = 0; f < names.length; f++) {
+                if (parsed[f]) {
+                    putString(out, names[f]);
+                    out.writeLong(modified[f]);
+                    out.writeLong(sizes[f]);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Manifest)) {
+                return false;
+            }
+            Manifest other = (Manifest) o;
+            return Arrays.equals(names, other.names)
+                    && Arrays.equals(modified, other.modified)
+                    && Arrays.equals(sizes, other.sizes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(names);
+        }
+    }
+
+}
@@ -1,16 +1,65 @@
 package kws;
 
-import java.util.List;
-
 /*
  * Hausdorff Edit Distance (HED)
+ *
+ * The cost arrays of the node and edge matching are kept between calls and only grown when a larger graph or
+ * node degree is encountered, such that matching packed graphs does not allocate. A HED instance is therefore a
+ * per-thread workspace and must not be shared between threads.
  */
-public class HED {
+public class HED implements GraphMatcher {
 
     KCost cost;
 
+    // scratch buffers for match and matchEdges
+    private double[] costAB = new double[0];
+    private double[] costBA = new double[0];
+    private double[] edgeCostAB = new double[0];
+    private double[] edgeCostBA = new double[0];
+
+    // edge matching cost by degree pair (degree1 * edgeStride + degree2) if the edge substitution cost is constant
+    private boolean constantEdges;
+    private double[] edgeTable = new double[0];
+    private int edgeStride = 0;
+
+    // search the substitutions with the grids of the graphs instead of all node pairs
+    private boolean spatialIndex;
+    private boolean euclidean;
+
+    // dense substitutions a row at a time with the Vector API, null if not available
+    private SubstitutionKernel kernel = SubstitutionKernel.load();
+
     public HED(KCost cost) {
         this.cost = cost;
+        constantEdges = cost.hasConstantEdgeSub();
+        euclidean = cost.hasEuclideanNodeSub();
+    }
+
+    public boolean isSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /*
+     * Look up the candidate nodes for substitution in a grid over the keypoints (see KGrid), rather than scanning
+     * all pairs of nodes. Only nodes within twice the deletion cost of a keypoint can beat deletion, all others
+     * are skipped. The result is the same as with the dense scan. Requires a Euclidean node substitution cost,
+     * the dense scan is used otherwise.
+     */
+    public void setSpatialIndex(boolean spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    public boolean isVectorized() {
+        return kernel != null;
+    }
+
+    /*
+     * Compute the dense substitutions of each node of g1 with the vectorized SubstitutionKernel, if it is available
+     * (on by default). Applies to a Euclidean node substitution cost, constant edge substitution costs and graphs
+     * with double coordinates (KDoubleGraph), the scalar loop is used otherwise. The result is the same.
+     */
+    public void setVectorized(boolean vectorized) {
+        kernel = vectorized ? SubstitutionKernel.load() : null;
     }
 
     /*
@@ -21,65 +70,132 @@ public class HED {
      * Before returning the HED, normalize it with the maximum graph edit distance between g1 and g2.
      */
     public double match(KGraph g1, KGraph g2) {
+        return match(KPackedGraph.pack(g1), KPackedGraph.pack(g2));
+    }
+
+    /*
+     * Compute the Hausdorff edit distance on the packed representation of g1 and g2.
+     */
+    @Override
+    public double match(KPackedGraph g1, KPackedGraph g2) {
+        return match(g1, g2, Double.POSITIVE_INFINITY, null, 0);
+    }
+
+    /*
+     * Compute the Hausdorff edit distance with early abandoning.
+     *
+     * lowerAB[i] is a lower bound for the cost A -> B of node i in g1 and lowerBA a lower bound for the sum of the
+     * costs B -> A. After each node of g1, the costs A -> B computed so far plus these lower bounds bound the
+     * unnormalized distance from below. As soon as this bound exceeds limit, the matching is abandoned and
+     * Double.POSITIVE_INFINITY is returned. Otherwise, the result is the same as match(g1, g2).
+     */
+    public double match(KPackedGraph g1, KPackedGraph g2, double limit, double[] lowerAB, double lowerBA) {
+        int n1 = g1.size();
+        int n2 = g2.size();
+
+        if (costAB.length < n1) {
+            costAB = new double[n1];
+        }
+        if (costBA.length < n2) {
+            costBA = new double[n2];
+        }
+        double[] costAB = this.costAB;
+        double[] costBA = this.costBA;
+        if (constantEdges) {
+            ensureEdgeTable(Math.max(g1.maxDegree(), g2.maxDegree()));
+        }
 
         // initialize cost A -> B with node and edge deletion costs
-        double[] costAB = new double[g1.size()];
-        for (int i = 0; i < g1.size(); i++) {
-            costAB[i] = cost.nodeDelIns() + 0.5 * g1.get(i).getEdges().size() * cost.edgeDelIns();
+        for (int i = 0; i < n1; i++) {
+            costAB[i] = cost.nodeDelIns() + 0.5 * g1.degree(i) * cost.edgeDelIns();
         }
 
         // initialize cost B -> A with node and edge insertion costs
-        double[] costBA = new double[g2.size()];
-        for (int j = 0; j < g2.size(); j++) {
-            costBA[j] = cost.nodeDelIns() + 0.5 * g2.get(j).getEdges().size() * cost.edgeDelIns();
+        for (int j = 0; j < n2; j++) {
+            costBA[j] = cost.nodeDelIns() + 0.5 * g2.degree(j) * cost.edgeDelIns();
         }
 
-        // compute the cost of substituting substructures (node plus adjacent edges)
-        for (int i = 0; i < g1.size(); i++) {
-            List<KEdge> edges1 = g1.get(i).getEdges();
-            for (int j = 0; j < g2.size(); j++) {
-                List<KEdge> edges2 = g2.get(j).getEdges();
+        // lower bound for the costs A -> B of the nodes not yet matched
+        double remainingAB = 0;
+        if (lowerAB != null) {
+            for (int i = 0; i < n1; i++) {
+                remainingAB += lowerAB[i];
+            }
+        }
+        double partialAB = 0;
 
-                // node and edge matching cost
-                double subNode = cost.nodeSub(g1.get(i), g2.get(j));
-                double subEdges = matchEdges(edges1, edges2);
+        if (spatialIndex && euclidean) {
 
-                // lower bound for edge matching
-                double minEdges = Math.abs(edges1.size() - edges2.size()) * cost.edgeDelIns();
-                if (minEdges > subEdges) {
-                    subEdges = minEdges;
+            // compute the cost of substituting substructures, only for nodes close enough to beat deletion
+            KGrid grid1 = g1.grid();
+            KGrid grid2 = g2.grid();
+            for (int i = 0; i < n1; i++) {
+                costAB[i] = nearest(g1, i, g2, grid2, costAB[i], true);
+
+                // early abandoning, costAB[i] is final
+                if (lowerAB != null) {
+                    partialAB += costAB[i];
+                    remainingAB -= lowerAB[i];
+                    if (partialAB + remainingAB + lowerBA > limit) {
+                        return Double.POSITIVE_INFINITY;
+                    }
                 }
+            }
+            for (int j = 0; j < n2; j++) {
+                costBA[j] = nearest(g2, j, g1, grid1, costBA[j], false);
+            }
+        } else {
 
-                // substitution cost
-                double substitution = 0.5 * (subNode + (0.5 * subEdges));
-                costAB[i] = Math.min(costAB[i], substitution);
-                costBA[j] = Math.min(costBA[j], substitution);
+            // compute the cost of substituting substructures (node plus adjacent edges)
+            boolean vectorized = kernel != null && euclidean && constantEdges
+                    && g1 instanceof KDoubleGraph && g2 instanceof KDoubleGraph;
+            KDoubleGraph rows = vectorized ? (KDoubleGraph) g2 : null;
+            for (int i = 0; i < n1; i++) {
+                if (vectorized) {
+                    costAB[i] = kernel.row(g1.getX(i), g1.getY(i), rows.xs(), rows.ys(), rows.degrees(), n2,
+                            edgeTable, g1.degree(i) * edgeStride, costAB[i], costBA);
+                } else {
+                    for (int j = 0; j < n2; j++) {
+                        double substitution = substitution(g1, i, g2, j);
+                        costAB[i] = Math.min(costAB[i], substitution);
+                        costBA[j] = Math.min(costBA[j], substitution);
+                    }
+                }
+
+                // early abandoning, costAB[i] is final after matching node i with all nodes of g2
+                if (lowerAB != null) {
+                    partialAB += costAB[i];
+                    remainingAB -= lowerAB[i];
+                    if (partialAB + remainingAB + lowerBA > limit) {
+                        return Double.POSITIVE_INFINITY;
+                    }
+                }
             }
         }
 
         // sum of costs A -> B plus costs B -> A
         double distance = 0;
-        for (int i = 0; i < g1.size(); i++) {
+        for (int i = 0; i < n1; i++) {
             distance += costAB[i];
         }
-        for (int j = 0; j < g2.size(); j++) {
+        for (int j = 0; j < n2; j++) {
             distance += costBA[j];
         }
 
         // lower bound for node matching
-        double minNodes = Math.abs(g1.size() - g2.size()) * cost.nodeDelIns();
+        double minNodes = Math.abs(n1 - n2) * cost.nodeDelIns();
         if (minNodes > distance) {
             distance = minNodes;
         }
 
         // normalize with the maximum graph edit distance
-        double maxNodes = (g1.size() + g2.size()) * cost.nodeDelIns();
+        double maxNodes = (n1 + n2) * cost.nodeDelIns();
         double maxEdges = 0;
-        for (KNode node : g1.getNodes()) {
-            maxEdges += 0.5 * node.getEdges().size() * cost.edgeDelIns();
+        for (int i = 0; i < n1; i++) {
+            maxEdges += 0.5 * g1.degree(i) * cost.edgeDelIns();
         }
-        for (KNode node : g2.getNodes()) {
-            maxEdges += 0.5 * node.getEdges().size() * cost.edgeDelIns();
+        for (int j = 0; j < n2; j++) {
+            maxEdges += 0.5 * g2.degree(j) * cost.edgeDelIns();
         }
         distance /= (maxNodes + maxEdges);
 
@@ -87,43 +203,157 @@ public class HED {
     }
 
     /*
-     * Compute the Hausdorff edit cost between two sets of edges.
+     * Cost of substituting node i in g1 with node j in g2, including the matching of the adjacent edges.
+     */
+    private double substitution(KPackedGraph g1, int i, KPackedGraph g2, int j) {
+        int degree1 = g1.degree(i);
+        int degree2 = g2.degree(j);
+
+        // node and edge matching cost
+        double subNode = cost.nodeSub(g1, i, g2, j);
+        double subEdges;
+        if (constantEdges) {
+            // the edge matching only depends on the degrees, the lower bound is already applied
+            subEdges = edgeTable[degree1 * edgeStride + degree2];
+        } else {
+            subEdges = matchEdges(g1, i, g2, j);
+
+            // lower bound for edge matching
+            double minEdges = Math.abs(degree1 - degree2) * cost.edgeDelIns();
+            if (minEdges > subEdges) {
+                subEdges = minEdges;
+            }
+        }
+
+        // substitution cost
+        return 0.5 * (subNode + (0.5 * subEdges));
+    }
+
+    /*
+     * Minimum of the deletion cost of node i in graph and the substitution costs with the nodes of other.
+     *
+     * The substitution cost is at least half the Euclidean distance between the keypoints, so only the nodes of
+     * other within twice the deletion cost can be cheaper than deletion. These are found with the grid of other,
+     * and the radius shrinks to twice the cheapest substitution found so far.
+     * The substitution cost is always evaluated as substitution(g1, i, g2, j), i.e. with graph as g1 if forward
+     * and as g2 otherwise, such that the result is the same as with the dense loop in match.
+     */
+    private double nearest(KPackedGraph graph, int i, KPackedGraph other, KGrid grid, double deletion,
+                           boolean forward) {
+        double x = graph.getX(i);
+        double y = graph.getY(i);
+        double radius = 2 * deletion;
+        double radius2 = radius * radius * (1 + 1e-12); // never skip a node because of rounding
+        double best = deletion;
+        int column1 = grid.column(x - radius);
+        int column2 = grid.column(x + radius);
+        int row2 = grid.row(y + radius);
+        for (int row = grid.row(y - radius); row <= row2; row++) {
+            int start = grid.cellStart(grid.cell(column1, row));
+            int end = grid.cellEnd(grid.cell(column2, row));
+            for (int k = start; k < end; k++) {
+                int j = grid.node(k);
+                double dx = x - other.getX(j);
+                double dy = y - other.getY(j);
+                if (dx * dx + dy * dy <= radius2) {
+                    double substitution = forward ? substitution(graph, i, other, j) : substitution(other, j, graph, i);
+                    if (substitution < best) {
+                        // only nodes within twice the best cost so far can improve it
+                        best = substitution;
+                        radius2 = 4 * best * best * (1 + 1e-12);
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Compute the Hausdorff edit cost between the edges of node i in g1 and the edges of node j in g2.
      * This method corresponds to Algorithm 2 (HEC) in the reference paper.
      *
-     * You need this method for implementing match(KGraph g1, KGraph g2).
+     * You need this method for implementing match(KPackedGraph g1, KPackedGraph g2).
      */
-    private double matchEdges(List<KEdge> edges1, List<KEdge> edges2) {
+    double matchEdges(KPackedGraph g1, int i, KPackedGraph g2, int j) {
+        int first1 = g1.firstEdge(i);
+        int first2 = g2.firstEdge(j);
+        int degree1 = g1.degree(i);
+        int degree2 = g2.degree(j);
+
+        if (edgeCostAB.length < degree1) {
+            edgeCostAB = new double[degree1];
+        }
+        if (edgeCostBA.length < degree2) {
+            edgeCostBA = new double[degree2];
+        }
+        double[] costAB = edgeCostAB;
+        double[] costBA = edgeCostBA;
 
         // initialize cost A -> B with edge deletion costs
-        double[] costAB = new double[edges1.size()];
-        for (int i = 0; i < edges1.size(); i++) {
-            costAB[i] = cost.edgeDelIns();
+        for (int e1 = 0; e1 < degree1; e1++) {
+            costAB[e1] = cost.edgeDelIns();
         }
 
         // initialize cost B -> A with edge insertion costs
-        double[] costBA = new double[edges2.size()];
-        for (int j = 0; j < edges2.size(); j++) {
-            costBA[j] = cost.edgeDelIns();
+        for (int e2 = 0; e2 < degree2; e2++) {
+            costBA[e2] = cost.edgeDelIns();
         }
 
         // compute the cost of substituting edges
-        for (int i = 0; i < edges1.size(); i++) {
-            for (int j = 0; j < edges2.size(); j++) {
-                double sub = 0.5 * cost.edgeSub(edges1.get(i), edges2.get(j));
-                costAB[i] = Math.min(costAB[i], sub);
-                costBA[j] = Math.min(costBA[j], sub);
+        for (int e1 = 0; e1 < degree1; e1++) {
+            for (int e2 = 0; e2 < degree2; e2++) {
+                double sub = 0.5 * cost.edgeSub(g1, first1 + e1, g2, first2 + e2);
+                costAB[e1] = Math.min(costAB[e1], sub);
+                costBA[e2] = Math.min(costBA[e2], sub);
             }
         }
 
         // sum of costs A -> B plus costs B -> A
         double distance = 0;
-        for (int i = 0; i < edges1.size(); i++) {
-            distance += costAB[i];
+        for (int e1 = 0; e1 < degree1; e1++) {
+            distance += costAB[e1];
         }
-        for (int j = 0; j < edges2.size(); j++) {
-            distance += costBA[j];
+        for (int e2 = 0; e2 < degree2; e2++) {
+            distance += costBA[e2];
         }
         return distance;
     }
 
+    /*
+     * Precompute the edge matching cost for all pairs of degrees up to maxDegree.
+     *
+     * If every edge substitution costs the same, each edge of one node is either substituted with the cheaper of
+     * substitution and deletion (if the other node has edges) or deleted, independent of the actual edges.
+     * The table holds exactly the result of matchEdges, including the lower bound, computed in the same order of
+     * summation, such that the distances do not change.
+     */
+    private void ensureEdgeTable(int maxDegree) {
+        if (maxDegree < edgeStride) {
+            return;
+        }
+        int stride = Math.max(2 * edgeStride, maxDegree + 1);
+        double[] table = new double[stride * stride];
+        double sub = 0.5 * cost.constantEdgeSub();
+        for (int degree1 = 0; degree1 < stride; degree1++) {
+            for (int degree2 = 0; degree2 < stride; degree2++) {
+                double costAB = degree2 > 0 ? Math.min(cost.edgeDelIns(), sub) : cost.edgeDelIns();
+                double costBA = degree1 > 0 ? Math.min(cost.edgeDelIns(), sub) : cost.edgeDelIns();
+                double subEdges = 0;
+                for (int e1 = 0; e1 < degree1; e1++) {
+                    subEdges += costAB;
+                }
+                for (int e2 = 0; e2 < degree2; e2++) {
+                    subEdges += costBA;
+                }
+                double minEdges = Math.abs(degree1 - degree2) * cost.edgeDelIns();
+                if (minEdges > subEdges) {
+                    subEdges = minEdges;
+                }
+                table[degree1 * stride + degree2] = subEdges;
+            }
+        }
+        edgeTable = table;
+        edgeStride = stride;
+    }
+
 }
@@ -0,0 +1,198 @@
+package kws;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Lower-bound cascade in front of HED for top-N retrieval.
+ *
+ * Before the full Hausdorff edit distance is computed, a candidate is checked against increasingly tight (and
+ * increasingly expensive) lower bounds of its normalized distance to the query:
+ * 1. node count: the lower bound for node matching of HED, |n1 - n2| * nodeDelIns()
+ * 2. bounding box: each node is either deleted or substituted, and the substitution of a node costs at least half
+ *    the Euclidean distance to the bounding box of the other graph (both graphs are centered, so the centroids
+ *    coincide and add nothing)
+ * If a bound exceeds the threshold (the current N-th best distance), the candidate is pruned. Otherwise, HED is
+ * computed with early abandoning, using the per-node bounds of stage 2 for the nodes not matched yet.
+ *
+ * A bound on the degrees of the substituted nodes (closest degree present in the other graph) pruned no pair on
+ * the word graphs of the lab (3 keywords, 3726 words), since nearly all degrees occur in every word, and was
+ * dropped. The bounding boxes of the queries are kept for up to MAX_QUERIES queries, such that a batch of queries
+ * interleaved per tile computes each box once.
+ *
+ * All bounds are valid lower bounds of HED.match, so the top-N results are the same as with exhaustive search.
+ * A small relative slack protects against rounding differences between the bounds and HED. The bounding box
+ * stage is only used if the node substitution cost is the Euclidean distance (KCost.hasEuclideanNodeSub()).
+ *
+ * Like HED, a cascade is a per-thread workspace.
+ */
+public class HEDCascade {
+
+    private static final double SLACK = 1e-9;
+    private static final int MAX_QUERIES = 256;
+
+    private HED hed;
+    private KCost cost;
+    private boolean euclidean;
+
+    // statistics
+    private long pairs;
+    private long prunedNodes;
+    private long prunedBox;
+    private long abandoned;
+
+    // bounding boxes of the recent queries
+    private Map<KPackedGraph, double[]> queryBoxes = new IdentityHashMap<KPackedGraph, double[]>();
+
+    // scratch buffers
+    private double[] wordBox = new double[4];
+    private double[] lowerAB = new double[0];
+
+    public HEDCascade(KCost cost) {
+        this.cost = cost;
+        hed = new HED(cost);
+        euclidean = cost.hasEuclideanNodeSub();
+    }
+
+    public HED getHED() {
+        return hed;
+    }
+
+    /*
+     * Normalized HED between query and word, or Double.POSITIVE_INFINITY if it is certainly larger than threshold.
+     */
+    public double match(KPackedGraph query, KPackedGraph word, double threshold) {
+        pairs++;
+        if (threshold == Double.POSITIVE_INFINITY) {
+            long start = Metrics.start();
+            double distance = hed.match(query, word);
+            Metrics.stop(Metrics.HED, start);
+            return distance;
+        }
+        int n1 = query.size();
+        int n2 = word.size();
+
+        // normalization of HED: maximum graph edit distance
+        double maxCost = (n1 + n2) * cost.nodeDelIns()
+                + 0.5 * (query.edgeCount() + word.edgeCount()) * cost.edgeDelIns();
+        double limit = threshold * maxCost * (1 + SLACK);
+
+        // 1. node count
+        double minNodes = Math.abs(n1 - n2) * cost.nodeDelIns();
+        if (minNodes > limit) {
+            prunedNodes++;
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // 2. bounding box
+        if (lowerAB.length < n1) {
+            lowerAB = new double[n1];
+        }
+        double lowerSumAB = 0;
+        double lowerBA = 0;
+        if (euclidean) {
+            double[] queryBox = queryBox(query);
+            box(word, wordBox);
+            for (int i = 0; i < n1; i++) {
+                lowerAB[i] = nodeBound(query.degree(i), boxDistance(query, i, wordBox), n2);
+                lowerSumAB += lowerAB[i];
+            }
+            for (int j = 0; j < n2; j++) {
+                lowerBA += nodeBound(word.degree(j), boxDistance(word, j, queryBox), n1);
+            }
+            if (Math.max(lowerSumAB + lowerBA, minNodes) > limit) {
+                prunedBox++;
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            for (int i = 0; i < n1; i++) {
+                lowerAB[i] = nodeBound(query.degree(i), 0, n2);
+            }
+            for (int j = 0; j < n2; j++) {
+                lowerBA += nodeBound(word.degree(j), 0, n1);
+            }
+        }
+
+        // 3. HED with early abandoning
+        long start = Metrics.start();
+        double distance = hed.match(query, word, limit, lowerAB, lowerBA);
+        Metrics.stop(Metrics.HED, start);
+        if (distance == Double.POSITIVE_INFINITY) {
+            abandoned++;
+        }
+        return distance;
+    }
+
+    /*
+     * Lower bound for the cost of a node with the given degree: deletion, or substitution with a node of the other
+     * graph at Euclidean distance of at least nodeDistance.
+     */
+    private double nodeBound(int degree, double nodeDistance, int otherSize) {
+        double deletion = cost.nodeDelIns() + 0.5 * degree * cost.edgeDelIns();
+        if (otherSize == 0) {
+            return deletion;
+        }
+        return Math.min(deletion, 0.5 * nodeDistance);
+    }
+
+    /*
+     * Bounding box of a query, computed once. The boxes are dropped when MAX_QUERIES queries are reached, such that a
+     * long-running workspace does not keep all queries alive.
+     */
+    private double[] queryBox(KPackedGraph query) {
+        double[] box = queryBoxes.get(query);
+        if (box == null) {
+            if (queryBoxes.size() >= MAX_QUERIES) {
+                queryBoxes.clear();
+            }
+            box = new double[4];
+            box(query, box);
+            queryBoxes.put(query, box);
+        }
+        return box;
+    }
+
+    /*
+     * Bounding box {minX, minY, maxX, maxY} of the node labels.
+     */
+    private static void box(KPackedGraph graph, double[] box) {
+        box[0] = Double.POSITIVE_INFINITY;
+        box[1] = Double.POSITIVE_INFINITY;
+        box[2] = Double.NEGATIVE_INFINITY;
+        box[3] = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < graph.size(); i++) {
+            box[0] = Math.min(box[0], graph.getX(i));
+            box[1] = Math.min(box[1], graph.getY(i));
+            box[2] = Math.max(box[2], graph.getX(i));
+            box[3] = Math.max(box[3], graph.getY(i));
+        }
+    }
+
+    /*
+     * Euclidean distance of node i to the bounding box (0 inside the box).
+     */
+    private static double boxDistance(KPackedGraph graph, int i, double[] box) {
+        double x = graph.getX(i);
+        double y = graph.getY(i);
+        double dx = Math.max(0, Math.max(box[0] - x, x - box[2]));
+        double dy = Math.max(0, Math.max(box[1] - y, y - box[3]));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public long getPairs() {
+        return pairs;
+    }
+
+    public long getPrunedNodes() {
+        return prunedNodes;
+    }
+
+    public long getPrunedBox() {
+        return prunedBox;
+    }
+
+    public long getAbandoned() {
+        return abandoned;
+    }
+
+}
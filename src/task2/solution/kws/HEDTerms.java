@@ -0,0 +1,145 @@
+package kws;
+
+import java.util.Arrays;
+
+/*
+ * The parts of HED between two graphs that do not depend on the costs, for evaluating many cost settings.
+ *
+ * With the cost function of KCost (Euclidean node substitution, edge substitution for free), substituting node i
+ * of g1 with node j of g2 costs 0.5 * (d(i,j) + 0.5 * |deg(i) - deg(j)| * edgeCost), since the edge matching of
+ * HED then reduces to its lower bound. For a node, only the closest node of the other graph for each difference of
+ * degrees can be the cheapest substitution, whatever the costs. These distances are computed once per pair of
+ * graphs (one pass over all node pairs, as in HED.match), after which the HED for any (nodeCost, edgeCost) takes
+ * only one pass over the nodes and degree differences.
+ *
+ * distance(nodeCost, edgeCost) is the same as HED.match with new KCost(nodeCost, edgeCost), up to rounding.
+ * Like HED, an instance is a per-thread workspace.
+ */
+public class HEDTerms {
+
+    private KPackedGraph g1;
+    private KPackedGraph g2;
+
+    // nearestAB[i * stride + delta]: distance from node i of g1 to the closest node of g2 whose degree differs
+    // by delta, infinite if there is none; nearestBA likewise for the nodes of g2
+    private int stride;
+    private double[] nearestAB = new double[0];
+    private double[] nearestBA = new double[0];
+
+    // scratch buffers for distances
+    private double[] substitutionAB = new double[0];
+    private double[] substitutionBA = new double[0];
+
+    /*
+     * Compute the cost-independent terms of HED between g1 and g2.
+     */
+    public void compute(KPackedGraph g1, KPackedGraph g2) {
+        this.g1 = g1;
+        this.g2 = g2;
+        int n1 = g1.size();
+        int n2 = g2.size();
+        stride = Math.max(g1.maxDegree(), g2.maxDegree()) + 1;
+        if (nearestAB.length < n1 * stride) {
+            nearestAB = new double[n1 * stride];
+        }
+        if (nearestBA.length < n2 * stride) {
+            nearestBA = new double[n2 * stride];
+        }
+        double[] nearestAB = this.nearestAB;
+        double[] nearestBA = this.nearestBA;
+        Arrays.fill(nearestAB, 0, n1 * stride, Double.POSITIVE_INFINITY);
+        Arrays.fill(nearestBA, 0, n2 * stride, Double.POSITIVE_INFINITY);
+
+        for (int i = 0; i < n1; i++) {
+            int degree1 = g1.degree(i);
+            for (int j = 0; j < n2; j++) {
+                int delta = Math.abs(degree1 - g2.degree(j));
+                double distance = g1.distance(i, g2, j);
+                int ab = i * stride + delta;
+                int ba = j * stride + delta;
+                if (distance < nearestAB[ab]) {
+                    nearestAB[ab] = distance;
+                }
+                if (distance < nearestBA[ba]) {
+                    nearestBA[ba] = distance;
+                }
+            }
+        }
+    }
+
+    /*
+     * Normalized HED between the graphs of the last compute() for the given costs.
+     */
+    public double distance(double nodeCost, double edgeCost) {
+        double[] distance = new double[1];
+        distances(new double[]{nodeCost}, edgeCost, distance);
+        return distance[0];
+    }
+
+    /*
+     * Normalized HED between the graphs of the last compute() for each of the node costs with the given edge cost.
+     * The cheapest substitution of each node only depends on the edge cost, so it is computed once for all node
+     * costs.
+     */
+    public void distances(double[] nodeCosts, double edgeCost, double[] distances) {
+        int n1 = g1.size();
+        int n2 = g2.size();
+        if (substitutionAB.length < n1) {
+            substitutionAB = new double[n1];
+        }
+        if (substitutionBA.length < n2) {
+            substitutionBA = new double[n2];
+        }
+        substitutions(nearestAB, n1, edgeCost, substitutionAB);
+        substitutions(nearestBA, n2, edgeCost, substitutionBA);
+
+        // normalization with the maximum graph edit distance
+        double maxEdges = 0;
+        for (int i = 0; i < n1; i++) {
+            maxEdges += 0.5 * g1.degree(i) * edgeCost;
+        }
+        for (int j = 0; j < n2; j++) {
+            maxEdges += 0.5 * g2.degree(j) * edgeCost;
+        }
+
+        for (int c = 0; c < nodeCosts.length; c++) {
+            double nodeCost = nodeCosts[c];
+
+            // sum of costs A -> B plus costs B -> A, each the minimum of deletion and substitution
+            double distance = 0;
+            for (int i = 0; i < n1; i++) {
+                distance += Math.min(nodeCost + 0.5 * g1.degree(i) * edgeCost, substitutionAB[i]);
+            }
+            for (int j = 0; j < n2; j++) {
+                distance += Math.min(nodeCost + 0.5 * g2.degree(j) * edgeCost, substitutionBA[j]);
+            }
+
+            // lower bound for node matching
+            double minNodes = Math.abs(n1 - n2) * nodeCost;
+            if (minNodes > distance) {
+                distance = minNodes;
+            }
+
+            double maxNodes = (n1 + n2) * nodeCost;
+            distances[c] = distance / (maxNodes + maxEdges);
+        }
+    }
+
+    /*
+     * Cheapest substitution of each node, with the closest node of each degree difference.
+     */
+    private void substitutions(double[] nearest, int n, double edgeCost, double[] substitutions) {
+        for (int i = 0; i < n; i++) {
+            double best = Double.POSITIVE_INFINITY;
+            int offset = i * stride;
+            for (int delta = 0; delta < stride; delta++) {
+                double substitution = 0.5 * (nearest[offset + delta] + (0.5 * (delta * edgeCost)));
+                if (substitution < best) {
+                    best = substitution;
+                }
+            }
+            substitutions[i] = best;
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package kws;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Keypoint graph in a compact layout, for large corpora.
+ *
+ * The normalized node labels are stored in 16-bit fixed point with FRACTION_BITS fractional bits, i.e. rounded to
+ * 1/16 pixel, and the CSR adjacency (see KPackedGraph) in unsigned 16-bit arrays, with the node degrees in bytes. A
+ * word graph then takes about a third of the memory of its KDoubleGraph.
+ *
+ * Between two compact graphs, the Euclidean distance of the nodes is computed from the squared difference of the
+ * fixed-point coordinates in exact integer arithmetic, with a single conversion for the square root. Coordinates
+ * are limited to +-MAX_COORDINATE, such that the squared distances fit into an int. Graphs beyond these limits are
+ * kept as they are (see compact).
+ *
+ * Rounding the labels changes each node distance by at most 1/16 pixel, so distances differ from the ones of the
+ * KDoubleGraph in the last digits. A compact graph is a copy of a normalized graph.
+ */
+public class KCompactGraph extends KPackedGraph {
+
+    public static final int FRACTION_BITS = 4;
+
+    /*
+     * Largest absolute coordinate in fixed point: the squared distance of two nodes, at most 2 * (2 * MAX)^2, fits
+     * into an int.
+     */
+    private static final int MAX_FIXED = 16383;
+    public static final double MAX_COORDINATE = (double) MAX_FIXED / (1 << FRACTION_BITS);
+
+    private static final double SCALE = 1.0 / (1 << FRACTION_BITS);
+
+    private short[] x;
+    private short[] y;
+    private byte[] degree;
+    private char[] offsets;
+    private char[] adjacency;
+
+    private KCompactGraph(String graphId, int maxDegree, short[] x, short[] y, char[] offsets, char[] adjacency) {
+        super(graphId, maxDegree);
+        this.x = x;
+        this.y = y;
+        this.offsets = offsets;
+        this.adjacency = adjacency;
+        degree = new byte[x.length];
+        for (int i = 0; i < x.length; i++) {
+            degree[i] = (byte) (offsets[i + 1] - offsets[i]);
+        }
+    }
+
+    /*
+     * Compact copy of a (normalized) graph, or the graph itself if it is compact already or exceeds the limits of
+     * the compact layout.
+     */
+    public static KPackedGraph compact(KPackedGraph graph) {
+        if (graph instanceof KCompactGraph || graph.size() > Character.MAX_VALUE
+                || graph.edgeCount() > Character.MAX_VALUE || graph.maxDegree() > Byte.MAX_VALUE) {
+            return graph;
+        }
+        int n = graph.size();
+        short[] x = new short[n];
+        short[] y = new short[n];
+        for (int i = 0; i < n; i++) {
+            long fx = Math.round(graph.getX(i) * (1 << FRACTION_BITS));
+            long fy = Math.round(graph.getY(i) * (1 << FRACTION_BITS));
+            if (Math.abs(fx) > MAX_FIXED || Math.abs(fy) > MAX_FIXED) {
+                return graph;
+            }
+            x[i] = (short) fx;
+            y[i] = (short) fy;
+        }
+        char[] offsets = new char[n + 1];
+        for (int i = 0; i <= n; i++) {
+            offsets[i] = (char) graph.firstEdge(i);
+        }
+        char[] adjacency = new char[graph.edgeCount()];
+        for (int e = 0; e < adjacency.length; e++) {
+            adjacency[e] = (char) graph.goal(e);
+        }
+        return new KCompactGraph(graph.getGraphId(), graph.maxDegree(), x, y, offsets, adjacency);
+    }
+
+    /*
+     * Compact copies of all graphs, in the same order.
+     */
+    public static List<KPackedGraph> compact(List<KPackedGraph> graphs) {
+        List<KPackedGraph> compact = new ArrayList<KPackedGraph>(graphs.size());
+        for (KPackedGraph graph : graphs) {
+            compact.add(compact(graph));
+        }
+        return compact;
+    }
+
+    @Override
+    public int size() {
+        return x.length;
+    }
+
+    @Override
+    public double getX(int i) {
+        return x[i] * SCALE;
+    }
+
+    @Override
+    public double getY(int i) {
+        return y[i] * SCALE;
+    }
+
+    @Override
+    public int degree(int i) {
+        return degree[i];
+    }
+
+    @Override
+    public int edgeCount() {
+        return adjacency.length;
+    }
+
+    @Override
+    public int firstEdge(int i) {
+        return offsets[i];
+    }
+
+    @Override
+    public int goal(int e) {
+        return adjacency[e];
+    }
+
+    @Override
+    public double distance(int i, KPackedGraph other, int j) {
+        if (other instanceof KCompactGraph) {
+            KCompactGraph compact = (KCompactGraph) other;
+            int dx = x[i] - compact.x[j];
+            int dy = y[i] - compact.y[j];
+            return Math.sqrt(dx * dx + dy * dy) * SCALE;
+        }
+        double dx = getX(i) - other.getX(j);
+        double dy = getY(i) - other.getY(j);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+}
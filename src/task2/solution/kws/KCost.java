@@ -33,4 +33,39 @@ public class KCost {
         return 0;
     }
 
+    /*
+     * True if nodeSub is the Euclidean distance between the keypoints.
+     * HEDCascade then uses geometric lower bounds. Other node cost functions must return false.
+     */
+    public boolean hasEuclideanNodeSub() {
+        return true;
+    }
+
+    /*
+     * True if edgeSub returns constantEdgeSub() for every pair of edges, i.e. the edges are unlabeled.
+     * HED then computes the edge matching from the node degrees alone.
+     * Cost functions with edge labels must return false.
+     */
+    public boolean hasConstantEdgeSub() {
+        return true;
+    }
+
+    public double constantEdgeSub() {
+        return 0;
+    }
+
+    /*
+     * Substitution cost of node i in g1 and node j in g2 for packed graphs.
+     */
+    public double nodeSub(KPackedGraph g1, int i, KPackedGraph g2, int j) {
+        return g1.distance(i, g2, j);
+    }
+
+    /*
+     * Substitution cost of edge e1 in g1 and edge e2 in g2 for packed graphs (edges are indices into the adjacency).
+     */
+    public double edgeSub(KPackedGraph g1, int e1, KPackedGraph g2, int e2) {
+        return 0;
+    }
+
 }
@@ -0,0 +1,113 @@
+package kws;
+
+/*
+ * Keypoint graph with double coordinates: the node labels in the arrays x and y, the CSR adjacency in int arrays
+ * (see KPackedGraph).
+ *
+ * The arrays are shared with the caller and must not be modified once the graph is in use.
+ */
+public class KDoubleGraph extends KPackedGraph {
+
+    private double[] x;
+    private double[] y;
+    private int[] degree;
+    private int[] offsets;
+    private int[] adjacency;
+
+    public KDoubleGraph(String graphId, double[] x, double[] y, int[] offsets, int[] adjacency) {
+        super(graphId, maxDegree(offsets));
+        this.x = x;
+        this.y = y;
+        this.offsets = offsets;
+        this.adjacency = adjacency;
+        degree = new int[x.length];
+        for (int i = 0; i < x.length; i++) {
+            degree[i] = offsets[i + 1] - offsets[i];
+        }
+    }
+
+    private static int maxDegree(int[] offsets) {
+        int maxDegree = 0;
+        for (int i = 0; i + 1 < offsets.length; i++) {
+            maxDegree = Math.max(maxDegree, offsets[i + 1] - offsets[i]);
+        }
+        return maxDegree;
+    }
+
+    @Override
+    public int size() {
+        return x.length;
+    }
+
+    @Override
+    public double getX(int i) {
+        return x[i];
+    }
+
+    @Override
+    public double getY(int i) {
+        return y[i];
+    }
+
+    @Override
+    public int degree(int i) {
+        return degree[i];
+    }
+
+    @Override
+    public int edgeCount() {
+        return adjacency.length;
+    }
+
+    @Override
+    public int firstEdge(int i) {
+        return offsets[i];
+    }
+
+    @Override
+    public int goal(int e) {
+        return adjacency[e];
+    }
+
+    @Override
+    public double distance(int i, KPackedGraph other, int j) {
+        double dx = x[i] - other.getX(j);
+        double dy = y[i] - other.getY(j);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /*
+     * The arrays themselves, for kernels that work on whole rows (see SubstitutionKernel).
+     */
+    double[] xs() {
+        return x;
+    }
+
+    double[] ys() {
+        return y;
+    }
+
+    int[] degrees() {
+        return degree;
+    }
+
+    /*
+     * Center the node labels around (0,0), in the same way as KGraph.normalize().
+     */
+    void normalize() {
+        grid = null;
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < x.length; i++) {
+            meanX += x[i];
+            meanY += y[i];
+        }
+        meanX /= x.length;
+        meanY /= x.length;
+        for (int i = 0; i < x.length; i++) {
+            x[i] = x[i] - meanX;
+            y[i] = y[i] - meanY;
+        }
+    }
+
+}
@@ -11,4 +11,8 @@ public class KEdge {
         this.goal = goal;
     }
 
+    public KNode getGoal() {
+        return goal;
+    }
+
 }
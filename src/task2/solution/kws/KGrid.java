@@ -0,0 +1,110 @@
+package kws;
+
+/*
+ * Uniform grid over the node labels of a packed graph.
+ *
+ * The nodes are sorted by grid cell (row-major), such that the nodes of a cell are
+ * nodes[cellStart[c]] ... nodes[cellStart[c + 1] - 1]. HED uses the grid to visit only the nodes within a given
+ * radius of a keypoint instead of all nodes of the graph.
+ */
+public class KGrid {
+
+    /*
+     * Side length of a cell, in pixels of the normalized keypoint coordinates.
+     */
+    public static final double CELL_SIZE = 32.0;
+
+    private final double minX;
+    private final double minY;
+    private final int columns;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] nodes;
+
+    public KGrid(KPackedGraph graph) {
+        int n = graph.size();
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, graph.getX(i));
+            minY = Math.min(minY, graph.getY(i));
+            maxX = Math.max(maxX, graph.getX(i));
+            maxY = Math.max(maxY, graph.getY(i));
+        }
+        if (n == 0) {
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+        this.minX = minX;
+        this.minY = minY;
+        columns = (int) ((maxX - minX) / CELL_SIZE) + 1;
+        rows = (int) ((maxY - minY) / CELL_SIZE) + 1;
+
+        // counting sort of the nodes by cell
+        int[] cells = new int[n];
+        cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < n; i++) {
+            cells[i] = cell(column(graph.getX(i)), row(graph.getY(i)));
+            cellStart[cells[i] + 1]++;
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] next = new int[columns * rows];
+        System.arraycopy(cellStart, 0, next, 0, next.length);
+        nodes = new int[n];
+        for (int i = 0; i < n; i++) {
+            nodes[next[cells[i]]++] = i;
+        }
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cell(int column, int row) {
+        return row * columns + column;
+    }
+
+    /*
+     * Column of the x coordinate, clamped to the grid.
+     */
+    public int column(double x) {
+        return clamp((int) Math.floor((x - minX) / CELL_SIZE), columns);
+    }
+
+    /*
+     * Row of the y coordinate, clamped to the grid.
+     */
+    public int row(double y) {
+        return clamp((int) Math.floor((y - minY) / CELL_SIZE), rows);
+    }
+
+    public int cellStart(int cell) {
+        return cellStart[cell];
+    }
+
+    public int cellEnd(int cell) {
+        return cellStart[cell + 1];
+    }
+
+    /*
+     * Node at position k in cell order.
+     */
+    public int node(int k) {
+        return nodes[k];
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : (value >= size ? size - 1 : value);
+    }
+
+}
@@ -0,0 +1,105 @@
+package kws;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Keypoint graph in a packed structure-of-arrays layout, read-only.
+ *
+ * The node labels are kept in coordinate arrays and the edges in a compressed sparse row (CSR) adjacency: the edges
+ * of node i are firstEdge(i) ... firstEdge(i + 1) - 1, each identified by its position in the adjacency, and goal(e)
+ * is the goal node of edge e. A word graph thus consists of a handful of primitive arrays instead of hundreds of
+ * KNode and KEdge objects.
+ *
+ * The arrays are kept by the layouts:
+ * - KDoubleGraph  double coordinates and int adjacency, as read from the GXL files
+ * - KCompactGraph 16-bit fixed-point coordinates and adjacency, about a third of the memory
+ *
+ * The readers normalize a graph (KDoubleGraph.normalize) before it is used, afterwards it does not change.
+ */
+public abstract class KPackedGraph {
+
+    private String graphId;
+    private int maxDegree;
+    KGrid grid;
+
+    KPackedGraph(String graphId, int maxDegree) {
+        this.graphId = graphId;
+        this.maxDegree = maxDegree;
+    }
+
+    /*
+     * Pack a keypoint graph, keeping the order of the nodes and edges.
+     */
+    public static KDoubleGraph pack(KGraph graph) {
+        int n = graph.size();
+        Map<KNode, Integer> index = new IdentityHashMap<KNode, Integer>();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            KNode node = graph.get(i);
+            index.put(node, i);
+            x[i] = node.getX();
+            y[i] = node.getY();
+            offsets[i + 1] = offsets[i] + node.getEdges().size();
+        }
+        int[] adjacency = new int[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            int e = offsets[i];
+            for (KEdge edge : graph.get(i).getEdges()) {
+                adjacency[e++] = index.get(edge.getGoal());
+            }
+        }
+        return new KDoubleGraph(graph.getGraphId(), x, y, offsets, adjacency);
+    }
+
+    public String getGraphId() {
+        return graphId;
+    }
+
+    public abstract int size();
+
+    public abstract double getX(int i);
+
+    public abstract double getY(int i);
+
+    public abstract int degree(int i);
+
+    public int maxDegree() {
+        return maxDegree;
+    }
+
+    /*
+     * Number of directed edges, i.e. twice the number of undirected edges.
+     */
+    public abstract int edgeCount();
+
+    /*
+     * Index of the first edge of node i in the adjacency array.
+     */
+    public abstract int firstEdge(int i);
+
+    /*
+     * Goal node of edge e.
+     */
+    public abstract int goal(int e);
+
+    /*
+     * Euclidean distance between node i of this graph and node j of the other graph.
+     */
+    public abstract double distance(int i, KPackedGraph other, int j);
+
+    /*
+     * Grid over the node labels, built on first use.
+     */
+    public KGrid grid() {
+        KGrid grid = this.grid;
+        if (grid == null) {
+            grid = new KGrid(this);
+            this.grid = grid;
+        }
+        return grid;
+    }
+
+}
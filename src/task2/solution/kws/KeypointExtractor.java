@@ -0,0 +1,278 @@
+package kws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Keypoint graph of a binary word image, as extracted by DIVAServices in Task 1.
+ *
+ * Reference paper:
+ * A. Fischer, K. Riesen, and H. Bunke.
+ * Graph similarity features for HMM-based handwriting recognition in historical documents.
+ * Proc. 12th Int. Conf. on Frontiers in Handwriting Recognition, 253–258, 2010.
+ *
+ * 1. The ink is thinned to a skeleton of one pixel width (Zhang and Suen).
+ * 2. Keypoints are the end points (one run of skeleton neighbors) and junction points (three or more runs) of the
+ *    skeleton, and one point of each closed loop without such points.
+ * 3. The skeleton is traced from each keypoint to the next one, and a node is inserted every distance pixels on the
+ *    way. Consecutive nodes on the skeleton are connected by an edge.
+ *
+ * Node labels are the pixel coordinates (x,y) in the word image, the graph is not normalized. Like HED, an
+ * instance is a per-thread workspace.
+ */
+public class KeypointExtractor {
+
+    /*
+     * Distance between the nodes along the skeleton, in pixels.
+     */
+    public static final int DISTANCE = 10;
+
+    // offsets of the 8 neighbors P2 .. P9 (N, NE, E, SE, S, SW, W, NW) in clockwise order
+    private static final int[] DX = {0, 1, 1, 1, 0, -1, -1, -1};
+    private static final int[] DY = {-1, -1, 0, 1, 1, 1, 0, -1};
+
+    // neighbors in the order they are followed when tracing: first the direct ones, then the diagonal ones
+    private static final int[] TRACE = {0, 2, 4, 6, 1, 3, 5, 7};
+
+    private int distance;
+
+    // skeleton with a border of one background pixel, nodes by pixel (-1 for none)
+    private int stride;
+    private boolean[] skeleton = new boolean[0];
+    private boolean[] visited = new boolean[0];
+    private int[] nodes = new int[0];
+
+    // the graph being built
+    private List<int[]> positions;
+    private List<int[]> edges;
+    private Set<Long> edgeSet;
+
+    public KeypointExtractor(int distance) {
+        this.distance = distance;
+    }
+
+    public KeypointExtractor() {
+        this(DISTANCE);
+    }
+
+    public int getDistance() {
+        return distance;
+    }
+
+    /*
+     * Keypoint graph of the ink pixels (row by row, width x height) of a word image.
+     */
+    public KDoubleGraph extract(String graphId, boolean[] ink, int width, int height) {
+        thin(ink, width, height);
+
+        positions = new ArrayList<int[]>();
+        edges = new ArrayList<int[]>();
+        edgeSet = new HashSet<Long>();
+        int size = stride * (height + 2);
+        Arrays.fill(visited, 0, size, false);
+        Arrays.fill(nodes, 0, size, -1);
+
+        // keypoints in row order
+        for (int p = 0; p < size; p++) {
+            if (skeleton[p]) {
+                int runs = runs(p);
+                if (runs == 0 && neighbors(p) == 0 || runs == 1 || runs >= 3) {
+                    node(p);
+                }
+            }
+        }
+        int keypoints = positions.size();
+        for (int k = 0; k < keypoints; k++) {
+            traceFrom(k);
+        }
+
+        // closed loops without keypoints
+        for (int p = 0; p < size; p++) {
+            if (skeleton[p] && !visited[p] && nodes[p] < 0) {
+                traceFrom(node(p));
+            }
+        }
+
+        return build(graphId);
+    }
+
+    /*
+     * Thinning of Zhang and Suen into skeleton, with a border of one pixel.
+     */
+    private void thin(boolean[] ink, int width, int height) {
+        stride = width + 2;
+        int size = stride * (height + 2);
+        if (skeleton.length < size) {
+            skeleton = new boolean[size];
+            visited = new boolean[size];
+            nodes = new int[size];
+        }
+        Arrays.fill(skeleton, 0, size, false);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                skeleton[(y + 1) * stride + x + 1] = ink[y * width + x];
+            }
+        }
+
+        List<Integer> remove = new ArrayList<Integer>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int step = 0; step < 2; step++) {
+                remove.clear();
+                for (int p = stride; p < size - stride; p++) {
+                    if (!skeleton[p]) {
+                        continue;
+                    }
+                    int neighbors = neighbors(p);
+                    if (neighbors < 2 || neighbors > 6 || runs(p) != 1) {
+                        continue;
+                    }
+                    boolean n = skeleton[p - stride];
+                    boolean e = skeleton[p + 1];
+                    boolean s = skeleton[p + stride];
+                    boolean w = skeleton[p - 1];
+                    if (step == 0 ? !(n && e && s) && !(e && s && w) : !(n && e && w) && !(n && s && w)) {
+                        remove.add(p);
+                    }
+                }
+                for (int p : remove) {
+                    skeleton[p] = false;
+                }
+                changed |= !remove.isEmpty();
+            }
+        }
+    }
+
+    private int neighbor(int p, int direction) {
+        return p + DY[direction] * stride + DX[direction];
+    }
+
+    private int neighbors(int p) {
+        int count = 0;
+        for (int d = 0; d < 8; d++) {
+            if (skeleton[neighbor(p, d)]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Number of background to skeleton transitions around p (the crossing number).
+     */
+    private int runs(int p) {
+        int runs = 0;
+        for (int d = 0; d < 8; d++) {
+            if (!skeleton[neighbor(p, d)] && skeleton[neighbor(p, (d + 1) % 8)]) {
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+    private int node(int p) {
+        int node = positions.size();
+        positions.add(new int[]{p % stride - 1, p / stride - 1});
+        nodes[p] = node;
+        visited[p] = true;
+        return node;
+    }
+
+    private void edge(int a, int b) {
+        if (a != b && edgeSet.add(a < b ? ((long) a << 32) | b : ((long) b << 32) | a)) {
+            edges.add(new int[]{a, b});
+        }
+    }
+
+    /*
+     * Follow each skeleton branch that leaves the pixel of node k.
+     */
+    private void traceFrom(int k) {
+        int[] position = positions.get(k);
+        int start = (position[1] + 1) * stride + position[0] + 1;
+        for (int d : TRACE) {
+            int q = neighbor(start, d);
+            if (!skeleton[q]) {
+                continue;
+            }
+            if (nodes[q] >= 0) {
+                edge(k, nodes[q]);
+            } else if (!visited[q]) {
+                trace(k, start, q);
+            }
+        }
+    }
+
+    /*
+     * Trace a branch from node last (at pixel previous) through pixel p until the next node or the end of the branch,
+     * inserting a node every distance pixels.
+     */
+    private void trace(int last, int previous, int p) {
+        int steps = 1;
+        while (true) {
+            visited[p] = true;
+            if (steps % distance == 0) {
+                int node = node(p);
+                edge(last, node);
+                last = node;
+            }
+
+            // a node next to p ends the branch, other than the last one
+            int next = -1;
+            for (int d : TRACE) {
+                int q = neighbor(p, d);
+                if (skeleton[q] && q != previous && nodes[q] >= 0 && nodes[q] != last) {
+                    edge(last, nodes[q]);
+                    return;
+                }
+            }
+            for (int d : TRACE) {
+                int q = neighbor(p, d);
+                if (skeleton[q] && q != previous && !visited[q]) {
+                    next = q;
+                    break;
+                }
+            }
+            if (next < 0) {
+                // end of the branch without a keypoint (e.g. where two traces meet)
+                if (nodes[p] < 0) {
+                    edge(last, node(p));
+                }
+                return;
+            }
+            previous = p;
+            p = next;
+            steps++;
+        }
+    }
+
+    private KDoubleGraph build(String graphId) {
+        int n = positions.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = positions.get(i)[0];
+            y[i] = positions.get(i)[1];
+        }
+        int[] offsets = new int[n + 1];
+        for (int[] edge : edges) {
+            offsets[edge[0] + 1]++;
+            offsets[edge[1] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] adjacency = new int[offsets[n]];
+        for (int[] edge : edges) {
+            adjacency[next[edge[0]]++] = edge[1];
+            adjacency[next[edge[1]]++] = edge[0];
+        }
+        return new KDoubleGraph(graphId, x, y, offsets, adjacency);
+    }
+
+}
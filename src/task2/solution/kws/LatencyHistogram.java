@@ -0,0 +1,121 @@
+package kws;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of latencies in nanoseconds with a bounded relative error, for percentile summaries of long runs.
+ *
+ * Unlike LatencyRecorder, all latencies ever recorded are counted, in buckets of logarithmic size: each power of two
+ * is split into SUB_BUCKETS buckets of equal width, which bounds the error of a percentile to 1 / SUB_BUCKETS of its
+ * value. Recording only increments a few atomic counters and is thread-safe without locking.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS buckets for each power of two up to 2^63
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private String name;
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long latencyNanos) {
+        long value = Math.max(latencyNanos, 0);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /*
+     * Sum of all latencies in milliseconds.
+     */
+    public double getTotal() {
+        return sum.get() / 1e6;
+    }
+
+    /*
+     * Mean latency in milliseconds.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / 1e6 / n;
+    }
+
+    /*
+     * Maximum latency in milliseconds (exact).
+     */
+    public double getMax() {
+        return max.get() / 1e6;
+    }
+
+    /*
+     * The p-th percentile (0 < p <= 100) in milliseconds, nearest-rank method on the buckets. The upper end of the
+     * bucket is returned, capped by the maximum.
+     */
+    public double percentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(p / 100.0 * n), 1);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(upper(b), max.get()) / 1e6;
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /*
+     * Largest value of a bucket.
+     */
+    private static long upper(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getCount() + " x, total " + round(getTotal()) + " ms, mean " + round(getMean())
+                + " ms, p50 " + round(percentile(50)) + " ms, p90 " + round(percentile(90))
+                + " ms, p99 " + round(percentile(99)) + " ms, max " + round(getMax()) + " ms";
+    }
+
+    private static double round(double millis) {
+        return Math.round(millis * 1000.0) / 1000.0;
+    }
+
+}
@@ -0,0 +1,57 @@
+package kws;
+
+import java.util.Arrays;
+
+/*
+ * Latencies of the most recent queries, for percentile reports.
+ *
+ * The last WINDOW latencies are kept in a ring buffer, percentiles are computed on a sorted copy when they are
+ * requested. Recording is thread-safe.
+ */
+public class LatencyRecorder {
+
+    private static final int WINDOW = 10000;
+
+    private long[] nanos = new long[WINDOW];
+    private long count;
+
+    public synchronized void record(long latencyNanos) {
+        nanos[(int) (count % WINDOW)] = latencyNanos;
+        count++;
+    }
+
+    /*
+     * Number of latencies recorded in total.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /*
+     * Latencies in the window, in ascending order.
+     */
+    public synchronized long[] sorted() {
+        long[] sorted = Arrays.copyOf(nanos, (int) Math.min(count, WINDOW));
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /*
+     * The p-th percentile (0 < p <= 100) of the sorted latencies in milliseconds, nearest-rank method.
+     */
+    public static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        long[] sorted = sorted();
+        return getCount() + " queries, p50 " + percentile(sorted, 50) + " ms, p90 " + percentile(sorted, 90)
+                + " ms, p99 " + percentile(sorted, 99) + " ms, max " + percentile(sorted, 100) + " ms";
+    }
+
+}
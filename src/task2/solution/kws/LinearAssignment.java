@@ -0,0 +1,130 @@
+package kws;
+
+import java.util.Arrays;
+
+/*
+ * Solver of the linear sum assignment problem: assign each row of a square cost matrix to a different column, such
+ * that the sum of the assigned costs is minimal.
+ *
+ * Reference paper:
+ * R. Jonker and A. Volgenant.
+ * A shortest augmenting path algorithm for dense and sparse linear assignment problems.
+ * Computing, 38(4), 325–340, 1987.
+ *
+ * The rows are added one by one, each with a shortest augmenting path (Dijkstra on the reduced costs) that keeps the
+ * dual potentials of rows and columns feasible, in O(n^3) for n rows. Costs may be Double.POSITIVE_INFINITY for
+ * forbidden pairs as long as a finite assignment exists.
+ *
+ * The matrix and the arrays of the solver are kept between calls and only grown for larger problems, such that
+ * solving does not allocate. An instance is therefore a per-thread workspace, like HED.
+ */
+public class LinearAssignment {
+
+    private int size;
+    private double[] matrix = new double[0];
+
+    // potentials, assignment and search state, 1-based with column 0 as the virtual start of each path
+    private double[] u = new double[1];
+    private double[] v = new double[1];
+    private double[] minimum = new double[1];
+    private int[] rowOfColumn = new int[1];
+    private int[] way = new int[1];
+    private boolean[] used = new boolean[1];
+    private int[] columnOfRow = new int[0];
+
+    /*
+     * Cost matrix for a problem of size rows and columns, row by row (cost of row r and column c at r * size + c).
+     * The contents are undefined until they are filled in by the caller.
+     */
+    public double[] matrix(int size) {
+        this.size = size;
+        if (matrix.length < size * size) {
+            matrix = new double[size * size];
+        }
+        if (columnOfRow.length < size) {
+            u = new double[size + 1];
+            v = new double[size + 1];
+            minimum = new double[size + 1];
+            rowOfColumn = new int[size + 1];
+            way = new int[size + 1];
+            used = new boolean[size + 1];
+            columnOfRow = new int[size];
+        }
+        return matrix;
+    }
+
+    /*
+     * Solve the problem in the current matrix and return the minimal cost. column(r) is the assigned column of row
+     * r afterwards.
+     */
+    public double solve() {
+        int n = size;
+        double[] a = matrix;
+        Arrays.fill(u, 0, n + 1, 0);
+        Arrays.fill(v, 0, n + 1, 0);
+        Arrays.fill(rowOfColumn, 0, n + 1, 0);
+        for (int row = 1; row <= n; row++) {
+
+            // shortest augmenting path from the new row to a free column
+            rowOfColumn[0] = row;
+            int column0 = 0;
+            Arrays.fill(minimum, 0, n + 1, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, 0, n + 1, false);
+            do {
+                used[column0] = true;
+                int row0 = rowOfColumn[column0];
+                int offset = (row0 - 1) * n - 1;
+                double u0 = u[row0];
+                double delta = Double.POSITIVE_INFINITY;
+                int column1 = 0;
+                for (int column = 1; column <= n; column++) {
+                    if (!used[column]) {
+                        double reduced = a[offset + column] - u0 - v[column];
+                        if (reduced < minimum[column]) {
+                            minimum[column] = reduced;
+                            way[column] = column0;
+                        }
+                        if (minimum[column] < delta) {
+                            delta = minimum[column];
+                            column1 = column;
+                        }
+                    }
+                }
+
+                // update the potentials such that the reduced costs on the tree stay zero
+                for (int column = 0; column <= n; column++) {
+                    if (used[column]) {
+                        u[rowOfColumn[column]] += delta;
+                        v[column] -= delta;
+                    } else {
+                        minimum[column] -= delta;
+                    }
+                }
+                column0 = column1;
+            } while (rowOfColumn[column0] != 0);
+
+            // augment along the path
+            do {
+                int column1 = way[column0];
+                rowOfColumn[column0] = rowOfColumn[column1];
+                column0 = column1;
+            } while (column0 != 0);
+        }
+
+        double total = 0;
+        for (int column = 1; column <= n; column++) {
+            int row = rowOfColumn[column] - 1;
+            columnOfRow[row] = column - 1;
+            total += a[row * n + column - 1];
+        }
+        return total;
+    }
+
+    /*
+     * Column assigned to a row by the last solve.
+     */
+    public int column(int row) {
+        return columnOfRow[row];
+    }
+
+}
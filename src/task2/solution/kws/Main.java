@@ -1,21 +1,9 @@
 package kws;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Element;
-import org.xml.sax.EntityResolver;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
 import javax.swing.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
@@ -47,7 +35,8 @@ public class Main {
 
     private static final String DIR_GXL = "graphs_binary";
     private static final String TYPE_GXL = "xml";
-    private static final String DTD_GXL = "http://www.gupro.de/GXL/gxl-1.0.dtd";
+    private static final String FILE_STORE = "graphs_binary.kgs";
+    private static final String DIR_CACHE = "cache";
 
     private static final String DIR_IMG = "words_binary";
     private static final String TYPE_IMG = "png";
@@ -76,6 +65,15 @@ public class Main {
         int topN = 10;
         boolean displayTopN = true; // turn off the (Swing-based) visualization if needed
 
+        int threads = Runtime.getRuntime().availableProcessors(); // threads for reading and matching the graphs
+        boolean useStore = true; // compile the graphs into a binary store in pathOut and load it from there
+        boolean pruning = true; // skip words that cannot be among the top-N (same results as exhaustive matching)
+        boolean spatialIndex = false; // look up the nodes to substitute in a grid (same results, faster on large graphs)
+        boolean useCache = true; // keep the top-N results in pathOut and reuse them for the same keyword, costs and pages
+        int candidates = 0; // match only this many closest words of the EmbeddingIndex with HED (approximate, 0 for all)
+        int rerank = 0; // re-rank this many best words of HED with the BipartiteGED (tighter, cubic cost, 0 for none)
+        boolean compact = false; // keep the graphs in 16-bit fixed point, about a third of the memory (see KCompactGraph)
+
         /*
          * Read Graphs
          */
@@ -83,8 +81,12 @@ public class Main {
         System.out.println("Reading keyword graph and page graphs ...");
         double startTime = System.currentTimeMillis();
 
-        KGraph keyword = getKeyword(pathOut, keywordId);
-        List<KGraph> words = getWords(pathOut, pageIds);
+        KPackedGraph keyword = getKeyword(pathOut, keywordId);
+        List<KPackedGraph> words = getWords(pathOut, pageIds, threads, useStore);
+        if (compact) {
+            keyword = KCompactGraph.compact(keyword);
+            words = KCompactGraph.compact(words);
+        }
 
         System.out.println("... done. Read "
                 + (1 + words.size()) + " graphs in "
@@ -97,17 +99,40 @@ public class Main {
         System.out.println("Matching keyword graph with page graphs ...");
         startTime = System.currentTimeMillis();
 
-        List<Result> results = new ArrayList<Result>();
+        // the corpus is matched in parallel, each thread with its own HED (see MatchEngine)
         KCost cost = new KCost(nodeCost, edgeCost);
-        HED hed = new HED(cost);
-        for (KGraph word : words) {
-            double distance = hed.match(keyword, word); // you have to implement this method
-            Result result = new Result(word.getGraphId(), distance);
-            results.add(result);
+        ResultCache cache = useCache ? new ResultCache(1, Paths.get(pathOut, DIR_CACHE).toFile()) : null;
+        Corpus corpus = new Corpus(1, words);
+        if (useCache) {
+            cache.setCorpus(corpus);
+        }
+        String cacheKey = useCache ? ResultCache.key(keyword, cost, corpus.getContentVersion())
+                + (candidates > 0 ? "-k" + candidates : "") + (rerank > 0 ? "-r" + rerank : "") : null;
+        List<MatchEngine.Match> results = useCache ? cache.get(cacheKey, topN) : null;
+        if (results == null) {
+            MatchEngine.Stats stats = new MatchEngine.Stats();
+            try (MatchEngine engine = new MatchEngine(cost, threads)) {
+                engine.setPruning(pruning);
+                engine.setSpatialIndex(spatialIndex);
+                int firstN = Math.max(rerank, topN);
+                if (candidates > 0) {
+                    results = new EmbeddingIndex(words).search(keyword, candidates, engine, firstN, stats);
+                } else {
+                    results = engine.search(keyword, words, firstN, stats);
+                }
+                if (rerank > 0) {
+                    results = engine.rerank(keyword, words, results, rerank, topN);
+                }
+            }
+            if (useCache) {
+                cache.put(cacheKey, topN, results);
+            }
+            System.out.println("    " + stats);
+        } else {
+            System.out.println("    results from cache " + cacheKey);
         }
-
         System.out.println("... done. Matched "
-                + results.size() + " graphs in "
+                + words.size() + " graphs in "
                 + (System.currentTimeMillis() - startTime) + " ms.\n");
 
         /*
@@ -115,10 +140,9 @@ public class Main {
          */
 
         System.out.println("Top " + topN);
-        Collections.sort(results);
         for (int i = 0; i < topN && i < results.size(); i++) {
-            Result result = results.get(i);
-            System.out.println((i + 1) + ". " + result.graphId + " (" + Math.round(result.distance * 1000.0) / 1000.0 + ")");
+            MatchEngine.Match result = results.get(i);
+            System.out.println((i + 1) + ". " + result.getGraphId() + " (" + Math.round(result.getDistance() * 1000.0) / 1000.0 + ")");
         }
 
         /*
@@ -126,6 +150,7 @@ public class Main {
          */
 
         if (displayTopN) {
+            long displayStart = Metrics.start();
             JFrame frame = new JFrame("Top " + topN);
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             JPanel panel = new JPanel();
@@ -140,8 +165,7 @@ public class Main {
 
             // add top-N word images
             for (int i = 0; i < topN && i < results.size(); i++) {
-                Result result = results.get(i);
-                String wordId = result.graphId;
+                String wordId = results.get(i).getGraphId();
                 pageId = wordId.substring(0, wordId.indexOf("-"));
                 label = new JLabel();
                 label.setIcon(new ImageIcon(Paths.get(pathOut, pageId, DIR_IMG, wordId + "." + TYPE_IMG).toString()));
@@ -158,130 +182,68 @@ public class Main {
             frame.setLocation(dim.width/2-width/2, 0);
             frame.pack();
             frame.setVisible(true);
+            Metrics.stop(Metrics.DISPLAY, displayStart);
         }
 
-    }
-
-    /*
-     * Helper class to store the distance results.
-     */
-    private static class Result implements Comparable<Result> {
-
-        private String graphId;
-        private Double distance;
-
-        public Result(String graphId, double distance) {
-            this.graphId = graphId;
-            this.distance = distance;
-        }
+        // time spent in each phase, with -Dkws.metrics=true (see Metrics)
+        Metrics.printSummary(System.out);
 
-        @Override
-        public int compareTo(Result o) {
-            return distance.compareTo(o.distance);
-        }
     }
 
-    private static KGraph getKeyword(String pathOut, String keywordId) {
+    static KPackedGraph getKeyword(String pathOut, String keywordId) {
         String pageID = keywordId.substring(0, keywordId.indexOf("-"));
         File gxl = Paths.get(pathOut, pageID, DIR_GXL, keywordId + "." + TYPE_GXL).toFile();
-        KGraph keyword = readGraph(gxl, keywordId);
+        KPackedGraph keyword = readGraph(gxl, keywordId);
         return keyword;
     }
 
-    private static List<KGraph> getWords(String pathOut, String[] pageIds) {
-        List<File> gxlFiles = new ArrayList<File>();
-        try {
-            for (String pageID : pageIds) {
-                Files.newDirectoryStream(Paths.get(pathOut, pageID, DIR_GXL)
-                        , path -> path.toString().endsWith(TYPE_GXL))
-                        .forEach(filePath -> gxlFiles.add(filePath.toFile()));
+    /*
+     * Read the word graphs of all pages in parallel, see CorpusLoader.
+     * Files that cannot be read are reported and left out of the result.
+     *
+     * With useStore, the graphs are loaded from the binary store (see GraphStore) and only the pages whose
+     * GXL files have changed since the last run are parsed again.
+     */
+    static List<KPackedGraph> getWords(String pathOut, String[] pageIds, int threads, boolean useStore) {
+        CorpusLoader loader = new CorpusLoader(threads);
+        if (useStore) {
+            GraphStore store = new GraphStore(Paths.get(pathOut, FILE_STORE).toFile());
+            List<CorpusLoader.Failure> failures = new ArrayList<CorpusLoader.Failure>();
+            try {
+                List<String> rebuilt = store.update(pathOut, pageIds, loader, failures);
+                if (!rebuilt.isEmpty()) {
+                    System.out.println("    rebuilt pages " + rebuilt + " in " + store.getFile());
+                }
+                for (CorpusLoader.Failure failure : failures) {
+                    System.err.println("    failed to read " + failure);
+                }
+                return store.load();
+            } catch (IOException e) {
+                System.err.println("    cannot use graph store " + store.getFile() + ": " + e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        List<KGraph> words = new ArrayList<KGraph>();
-        for (File gxl : gxlFiles) {
-            String gxlName = gxl.getName();
-            String graphId = gxlName.substring(0, gxlName.indexOf(TYPE_GXL) - 1);
-            KGraph word = readGraph(gxl, graphId);
-            words.add(word);
+        CorpusLoader.Result loaded = loader.load(pathOut, pageIds);
+        for (CorpusLoader.PageTiming timing : loaded.getTimings()) {
+            System.out.println("    page " + timing);
+        }
+        for (CorpusLoader.Failure failure : loaded.getFailures()) {
+            System.err.println("    failed to read " + failure);
         }
-        return words;
+        return loaded.getGraphs();
     }
 
     /*
-     * Read the GXL and build the keypoint graph (KGraph).
+     * Read the GXL and build the packed keypoint graph (KPackedGraph).
      * We consider unirected graphs and add an inverse edge (b,a) for each edge (a,b) in the GXL.
+     * The GXL is parsed in a single streaming pass directly into a packed graph, see GXLReader.
      */
-    private static KGraph readGraph(File gxl, String graphId) {
-        Map<String, KNode> nodes = new HashMap<String, KNode>();
+    private static KPackedGraph readGraph(File gxl, String graphId) {
         try {
-
-            // parse GXL
-            // skip DTD to speed up XML parsing
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            dBuilder.setEntityResolver(new EntityResolver() {
-                @Override
-                public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
-                    if (systemId.contains(DTD_GXL)) {
-                        return new InputSource(new StringReader(""));
-                    } else {
-                        return null;
-                    }
-                }
-            });
-
-            // read graph nodes
-            Document doc = dBuilder.parse(gxl);
-            NodeList gxlNodes = doc.getElementsByTagName("node");
-            for (int i = 0; i < gxlNodes.getLength(); i++) {
-                Element gxlNode = (Element) gxlNodes.item(i);
-                String id = gxlNode.getAttribute("id");
-                String x = readAttribute(gxlNode, "x");
-                String y = readAttribute(gxlNode, "y");
-                if (x != null && y != null) {
-                    KNode node = new KNode(Double.parseDouble(x), Double.parseDouble(y));
-                    nodes.put(id, node);
-                }
-            }
-
-            // read graph edges and add them to the corresponding nodes
-            NodeList gxlEdges = doc.getElementsByTagName("edge");
-            for (int i = 0; i < gxlEdges.getLength(); i++) {
-                Element gxlEdge = (Element) gxlEdges.item(i);
-                String id1 = gxlEdge.getAttribute("from");
-                String id2 = gxlEdge.getAttribute("to");
-                KNode node1 = nodes.get(id1);
-                KNode node2 = nodes.get(id2);
-                node1.addEdge(node2); // for each edge (a,b) ...
-                node2.addEdge(node1); // ... add an inverse edge (b,a)
-            }
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            return GXLReader.readPacked(gxl, graphId);
+        } catch (IOException e) {
             e.printStackTrace();
+            return new KDoubleGraph(graphId, new double[0], new double[0], new int[1], new int[0]);
         }
-
-        // create a graph and add the nodes
-        KGraph graph = new KGraph(graphId);
-        for (KNode node : nodes.values()) {
-            graph.addNode(node);
-        }
-
-        // normalize the graph and return the result
-        // normalization centers the node labels, such that they have zero mean (0,0) afterwards
-        graph.normalize();
-        return graph;
-    }
-
-    private static String readAttribute(Element gxlNode, String attributeName) {
-        NodeList gxlAttributes = gxlNode.getElementsByTagName("attr");
-        for (int i = 0; i < gxlAttributes.getLength(); i++) {
-            Element gxlAttribute = (Element) gxlAttributes.item(i);
-            if (gxlAttribute.getAttribute("name").equals(attributeName)) {
-                return gxlAttribute.getTextContent();
-            }
-        }
-        return null;
     }
 
 }
@@ -0,0 +1,452 @@
+package kws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Parallel matching of a query graph against a corpus of word graphs.
+ *
+ * The corpus is split recursively over a fork-join pool. Each worker thread matches with its own HED workspace
+ * and collects the top-N results of its part of the corpus in a TopN, the partial results are merged when the
+ * tasks are joined. Results are ordered by distance and, for equal distances, by corpus index, such that the ranking is
+ * the same for any number of threads and any scheduling.
+ *
+ * With pruning enabled (the default), each worker passes the best N-th distance known so far (its own or the one
+ * shared by the other workers) to a HEDCascade, which skips or abandons candidates that cannot enter the top-N. The results are the same as without pruning.
+ *
+ * Several queries can be matched in a single pass over the corpus (searchBatch). Each task then walks its part of
+ * the corpus in tiles of WORD_TILE word graphs and matches all queries against a tile before moving on, such that
+ * the node data of the words stays in cache while it is reused by every query.
+ *
+ * HED is a lower bound of the graph edit distance. For a more precise ranking, the best candidates of HED can be
+ * re-ranked with the BipartiteGED, an upper bound in cubic time that is only affordable for a few candidates
+ * (searchReranked). The candidates are matched in parallel, each worker thread with its own BipartiteGED.
+ */
+public class MatchEngine implements AutoCloseable {
+
+    /*
+     * Graphs below this number are matched in a single task. Larger tasks let the local top-N fill up earlier and
+     * prune more, so the corpus is split into no more than a few tasks per thread beyond this size.
+     */
+    private static final int BATCH_SIZE = 64;
+    private static final int TASKS_PER_THREAD = 8;
+
+    /*
+     * Number of word graphs that are matched against all queries of a batch before moving on to the next ones.
+     */
+    private static final int WORD_TILE = 16;
+
+    private KCost cost;
+    private ForkJoinPool pool;
+    private ThreadLocal<HEDCascade> workspace;
+    private ThreadLocal<BipartiteGED> rerankWorkspace;
+    private boolean pruning = true;
+    private boolean spatialIndex = false;
+
+    public MatchEngine(KCost cost, int parallelism) {
+        this.cost = cost;
+        pool = new ForkJoinPool(parallelism);
+        workspace = ThreadLocal.withInitial(() -> new HEDCascade(cost));
+        rerankWorkspace = ThreadLocal.withInitial(() -> new BipartiteGED(cost));
+    }
+
+    public MatchEngine(KCost cost) {
+        this(cost, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KCost getCost() {
+        return cost;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public boolean isPruning() {
+        return pruning;
+    }
+
+    public void setPruning(boolean pruning) {
+        this.pruning = pruning;
+    }
+
+    public boolean isSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /*
+     * Use the grid-based search of HED (see HED.setSpatialIndex).
+     */
+    public void setSpatialIndex(boolean spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    /*
+     * Match the query against all graphs of the corpus and return the topN closest ones.
+     */
+    public List<Match> search(KPackedGraph query, List<KPackedGraph> corpus, int topN) {
+        return search(query, corpus, topN, new Stats());
+    }
+
+    /*
+     * Match the query against all graphs of the corpus and return the topN closest ones.
+     * The pruning statistics of this search are added to stats.
+     */
+    public List<Match> search(KPackedGraph query, List<KPackedGraph> corpus, int topN, Stats stats) {
+        return matches(collect(query, corpus, topN, stats), corpus);
+    }
+
+    /*
+     * Match the query against all graphs of the corpus and collect the topN closest ones by corpus index.
+     */
+    public TopN collect(KPackedGraph query, List<KPackedGraph> corpus, int topN, Stats stats) {
+        return collect(Collections.singletonList(query), corpus, topN, stats)[0];
+    }
+
+    /*
+     * Match each query against all graphs of the corpus in a single pass and return the topN closest ones per query,
+     * in the order of the queries. The results of each query are the same as with search(query, ...).
+     */
+    public List<List<Match>> searchBatch(List<KPackedGraph> queries, List<KPackedGraph> corpus, int topN, Stats stats) {
+        TopN[] tops = collect(queries, corpus, topN, stats);
+        List<List<Match>> results = new ArrayList<List<Match>>(tops.length);
+        for (TopN top : tops) {
+            results.add(matches(top, corpus));
+        }
+        return results;
+    }
+
+    /*
+     * Match each query against all graphs of the corpus in a single pass and collect the topN closest ones per query.
+     */
+    public TopN[] collect(List<KPackedGraph> queries, List<KPackedGraph> corpus, int topN, Stats stats) {
+        Metrics.MatchEvent event = new Metrics.MatchEvent();
+        event.begin();
+        long start = Metrics.start();
+        Search search = new Search(queries, corpus, Math.max(topN, 0),
+                Math.max(BATCH_SIZE, corpus.size() / (TASKS_PER_THREAD * pool.getParallelism())));
+        Partial partial = pool.invoke(new SearchTask(search, 0, corpus.size()));
+        stats.add(partial.stats);
+        Metrics.stop(Metrics.QUERY, start);
+        Metrics.count(partial.stats);
+        if (event.shouldCommit()) {
+            event.queries = queries.size();
+            event.words = corpus.size();
+            event.topN = topN;
+            event.pairs = partial.stats.getPairs();
+            event.pruned = partial.stats.getPruned();
+            event.abandoned = partial.stats.getAbandoned();
+            event.commit();
+        }
+        return partial.tops;
+    }
+
+    /*
+     * Match the query against all graphs of the corpus with HED, re-rank the rerank best ones with the BipartiteGED
+     * and return topN results (see rerank).
+     */
+    public List<Match> searchReranked(KPackedGraph query, List<KPackedGraph> corpus, int rerank, int topN,
+                                      Stats stats) {
+        return rerank(query, corpus, search(query, corpus, Math.max(rerank, topN), stats), rerank, topN);
+    }
+
+    /*
+     * Re-rank the first rerank results of HED (e.g. of search, best first) with the BipartiteGED in parallel. They
+     * come first, ordered by their BipartiteGED, and the other results follow in their HED order, up to topN results
+     * in total. This is the ranking of Evaluation with rerank.
+     */
+    public List<Match> rerank(KPackedGraph query, List<KPackedGraph> corpus, List<Match> results, int rerank,
+                              int topN) {
+        int count = Math.max(0, Math.min(rerank, results.size()));
+        int[] indices = new int[count];
+        for (int k = 0; k < count; k++) {
+            indices[k] = results.get(k).getIndex();
+        }
+        double[] distances = new double[count];
+        pool.invoke(new RerankTask(query, corpus, indices, distances, 0, count));
+        TopN top = new TopN(Math.min(count, topN));
+        for (int k = 0; k < count; k++) {
+            top.offer(indices[k], distances[k]);
+        }
+        List<Match> matches = matches(top, corpus);
+        for (int k = count; k < results.size() && matches.size() < topN; k++) {
+            matches.add(results.get(k));
+        }
+        return matches;
+    }
+
+    private static List<Match> matches(TopN top, List<KPackedGraph> corpus) {
+        long start = Metrics.start();
+        int[] indices = new int[top.size()];
+        double[] distances = new double[top.size()];
+        top.sort(indices, distances);
+        List<Match> matches = new ArrayList<Match>(indices.length);
+        for (int k = 0; k < indices.length; k++) {
+            matches.add(new Match(indices[k], corpus.get(indices[k]).getGraphId(), distances[k]));
+        }
+        Metrics.stop(Metrics.TOP_N, start);
+        return matches;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /*
+     * Shared state of one search. The best N-th distance of each query found by any worker is shared, since it
+     * bounds the N-th distance of the whole corpus and lets all workers prune with it.
+     */
+    private static class Search {
+
+        private List<KPackedGraph> queries;
+        private List<KPackedGraph> corpus;
+        private int topN;
+        private int batchSize;
+        private AtomicLongArray thresholds;
+
+        Search(List<KPackedGraph> queries, List<KPackedGraph> corpus, int topN, int batchSize) {
+            this.queries = queries;
+            this.corpus = corpus;
+            this.topN = topN;
+            this.batchSize = batchSize;
+            thresholds = new AtomicLongArray(queries.size());
+            for (int q = 0; q < queries.size(); q++) {
+                thresholds.set(q, Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+            }
+        }
+
+        double threshold(int q) {
+            return Double.longBitsToDouble(thresholds.get(q));
+        }
+
+        void lowerThreshold(int q, double value) {
+            // non-negative doubles compare like their bit patterns
+            thresholds.accumulateAndGet(q, Double.doubleToLongBits(value), Math::min);
+        }
+    }
+
+    private class SearchTask extends RecursiveTask<Partial> {
+
+        private static final long serialVersionUID = 1L;
+
+        private Search search;
+        private int from;
+        private int to;
+
+        SearchTask(Search search, int from, int to) {
+            this.search = search;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from > search.batchSize) {
+                int mid = (from + to) >>> 1;
+                SearchTask right = new SearchTask(search, mid, to);
+                right.fork();
+                Partial left = new SearchTask(search, from, mid).compute();
+                Partial other = right.join();
+                int capacity = Math.min(search.topN, to - from);
+                for (int q = 0; q < left.tops.length; q++) {
+                    TopN top = left.tops[q];
+                    if (top.capacity() < capacity) {
+                        // the heaps of the halves only hold as many results as they have words
+                        top = new TopN(capacity);
+                        top.merge(left.tops[q]);
+                        left.tops[q] = top;
+                    }
+                    top.merge(other.tops[q]);
+                }
+                left.stats.add(other.stats);
+                return left;
+            }
+
+            HEDCascade cascade = workspace.get();
+            cascade.getHED().setSpatialIndex(spatialIndex);
+            Stats before = Stats.of(cascade);
+            // a leaf never holds more results than words, such that a large topN does not allocate per leaf
+            TopN[] tops = new TopN[search.queries.size()];
+            for (int q = 0; q < tops.length; q++) {
+                tops[q] = new TopN(Math.min(search.topN, to - from));
+            }
+            boolean sharesThreshold = pruning && tops.length > 0 && tops[0].capacity() == search.topN;
+            for (int tile = from; tile < to && search.topN > 0; tile += WORD_TILE) {
+                int tileEnd = Math.min(tile + WORD_TILE, to);
+                for (int q = 0; q < tops.length; q++) {
+                    KPackedGraph query = search.queries.get(q);
+                    TopN top = tops[q];
+                    for (int i = tile; i < tileEnd; i++) {
+                        KPackedGraph word = search.corpus.get(i);
+                        double distance;
+                        if (pruning) {
+                            double threshold = Math.min(top.threshold(), search.threshold(q));
+                            distance = cascade.match(query, word, threshold);
+                        } else {
+                            long start = Metrics.start();
+                            distance = cascade.getHED().match(query, word);
+                            Metrics.stop(Metrics.HED, start);
+                        }
+                        // the N-th distance of a smaller heap is no bound for the N-th distance of the corpus
+                        if (distance != Double.POSITIVE_INFINITY && top.offer(i, distance) && sharesThreshold) {
+                            search.lowerThreshold(q, top.threshold());
+                        }
+                    }
+                }
+            }
+            Stats stats = Stats.of(cascade);
+            stats.subtract(before);
+            stats.pairs = (long) (to - from) * tops.length;
+            return new Partial(tops, stats);
+        }
+    }
+
+    private class RerankTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private KPackedGraph query;
+        private List<KPackedGraph> corpus;
+        private int[] indices;
+        private double[] distances;
+        private int from;
+        private int to;
+
+        RerankTask(KPackedGraph query, List<KPackedGraph> corpus, int[] indices, double[] distances, int from, int to) {
+            this.query = query;
+            this.corpus = corpus;
+            this.indices = indices;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RerankTask(query, corpus, indices, distances, from, mid),
+                        new RerankTask(query, corpus, indices, distances, mid, to));
+                return;
+            }
+            BipartiteGED bipartite = rerankWorkspace.get();
+            for (int k = from; k < to; k++) {
+                long start = Metrics.start();
+                distances[k] = bipartite.match(query, corpus.get(indices[k]));
+                Metrics.stop(Metrics.BIPARTITE, start);
+            }
+        }
+    }
+
+    private static class Partial {
+
+        private TopN[] tops;
+        private Stats stats;
+
+        Partial(TopN[] tops, Stats stats) {
+            this.tops = tops;
+            this.stats = stats;
+        }
+    }
+
+    /*
+     * Number of graph pairs evaluated, pruned by each lower bound of the cascade, and abandoned during HED.
+     */
+    public static class Stats {
+
+        private long pairs;
+        private long prunedNodes;
+        private long prunedBox;
+        private long abandoned;
+
+        static Stats of(HEDCascade cascade) {
+            Stats stats = new Stats();
+            stats.pairs = cascade.getPairs();
+            stats.prunedNodes = cascade.getPrunedNodes();
+            stats.prunedBox = cascade.getPrunedBox();
+            stats.abandoned = cascade.getAbandoned();
+            return stats;
+        }
+
+        synchronized void add(Stats other) {
+            pairs += other.pairs;
+            prunedNodes += other.prunedNodes;
+            prunedBox += other.prunedBox;
+            abandoned += other.abandoned;
+        }
+
+        void subtract(Stats other) {
+            pairs -= other.pairs;
+            prunedNodes -= other.prunedNodes;
+            prunedBox -= other.prunedBox;
+            abandoned -= other.abandoned;
+        }
+
+        public long getPairs() {
+            return pairs;
+        }
+
+        public long getPruned() {
+            return prunedNodes + prunedBox;
+        }
+
+        public long getAbandoned() {
+            return abandoned;
+        }
+
+        /*
+         * Fraction of the pairs for which the full HED was not needed.
+         */
+        public double getPruneRate() {
+            return pairs == 0 ? 0 : (double) (getPruned() + abandoned) / pairs;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return pairs + " pairs, pruned " + prunedNodes + " by node count, " + prunedBox + " by bounding box, "
+                    + "abandoned " + abandoned
+                    + " (" + Math.round(getPruneRate() * 1000.0) / 10.0 + "%)";
+        }
+    }
+
+    /*
+     * A matched corpus graph with its index in the corpus and its distance to the query.
+     */
+    public static class Match implements Comparable<Match> {
+
+        private int index;
+        private String graphId;
+        private double distance;
+
+        public Match(int index, String graphId, double distance) {
+            this.index = index;
+            this.graphId = graphId;
+            this.distance = distance;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getGraphId() {
+            return graphId;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+
+        @Override
+        public int compareTo(Match o) {
+            int c = Double.compare(distance, o.distance);
+            return c != 0 ? c : Integer.compare(index, o.index);
+        }
+    }
+
+}
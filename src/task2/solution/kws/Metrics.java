@@ -0,0 +1,167 @@
+package kws;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Instrumentation of the keyword spotting pipeline: latency histograms of its phases, counters of the matched
+ * graph pairs, and JFR events for the load and match phases.
+ *
+ * The histograms and counters are turned on with -Dkws.metrics=true. Since ENABLED is a static final constant, the
+ * JIT removes the instrumentation entirely when it is off, and the timing of the hot paths costs nothing. The JFR
+ * events are independent of it and are only committed while a recording is running, e.g. with
+ * -XX:StartFlightRecording=filename=kws.jfr (the events are in the category "Keyword Spotting").
+ *
+ * Phases:
+ * - parse       reading one GXL file (GXLReader.readPacked), without normalization
+ * - normalize   centering the nodes of one graph
+ * - store       loading all graphs from the GraphStore
+ * - query       one search of the MatchEngine (a batch of queries counts once), from the first pair to the top-N
+ * - hed         one HED that was not pruned by the lower bounds of HEDCascade, including abandoned ones
+ * - bipartite   one BipartiteGED of a candidate that is re-ranked (MatchEngine.rerank)
+ * - topN        ordering the top-N of one query into results
+ * - display     showing the top-N word images in Main
+ */
+public class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("kws.metrics");
+
+    public static final LatencyHistogram PARSE = new LatencyHistogram("parse");
+    public static final LatencyHistogram NORMALIZE = new LatencyHistogram("normalize");
+    public static final LatencyHistogram STORE = new LatencyHistogram("store");
+    public static final LatencyHistogram QUERY = new LatencyHistogram("query");
+    public static final LatencyHistogram HED = new LatencyHistogram("hed");
+    public static final LatencyHistogram BIPARTITE = new LatencyHistogram("bipartite");
+    public static final LatencyHistogram TOP_N = new LatencyHistogram("topN");
+    public static final LatencyHistogram DISPLAY = new LatencyHistogram("display");
+
+    private static final LatencyHistogram[] PHASES = {PARSE, NORMALIZE, STORE, QUERY, HED, BIPARTITE, TOP_N, DISPLAY};
+
+    private static final LongAdder pairs = new LongAdder();
+    private static final LongAdder pruned = new LongAdder();
+    private static final LongAdder abandoned = new LongAdder();
+
+    private Metrics() {
+    }
+
+    /*
+     * Start time of a phase, 0 if the metrics are off.
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /*
+     * Record the time since start in the histogram of a phase.
+     */
+    public static void stop(LatencyHistogram phase, long start) {
+        if (ENABLED) {
+            phase.record(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Count the graph pairs of a search.
+     */
+    public static void count(MatchEngine.Stats stats) {
+        if (ENABLED) {
+            pairs.add(stats.getPairs());
+            pruned.add(stats.getPruned());
+            abandoned.add(stats.getAbandoned());
+        }
+    }
+
+    public static long getPairs() {
+        return pairs.sum();
+    }
+
+    public static long getPruned() {
+        return pruned.sum();
+    }
+
+    public static long getAbandoned() {
+        return abandoned.sum();
+    }
+
+    /*
+     * Counters and the percentiles of every phase that was recorded.
+     */
+    public static String summary() {
+        StringBuilder s = new StringBuilder("Metrics\n");
+        s.append("    pairs ").append(getPairs())
+                .append(", pruned ").append(getPruned())
+                .append(", abandoned ").append(getAbandoned()).append('\n');
+        for (LatencyHistogram phase : PHASES) {
+            if (phase.getCount() > 0) {
+                s.append("    ").append(phase).append('\n');
+            }
+        }
+        return s.toString();
+    }
+
+    /*
+     * Print the summary at the end of a run, if the metrics are on.
+     */
+    public static void printSummary(PrintStream out) {
+        if (ENABLED) {
+            out.println();
+            out.print(summary());
+        }
+    }
+
+    /*
+     * Graphs of one page read from GXL files or extracted by the Pipeline, or of all pages read from the GraphStore.
+     */
+    @Name("kws.Load")
+    @Label("Load Graphs")
+    @Category("Keyword Spotting")
+    static class LoadEvent extends Event {
+
+        @Label("Source")
+        @Description("gxl, store or pipeline")
+        String source;
+
+        @Label("Page")
+        String pageId;
+
+        @Label("Graphs")
+        int graphs;
+
+        @Label("Failures")
+        int failures;
+    }
+
+    /*
+     * One search of the MatchEngine.
+     */
+    @Name("kws.Match")
+    @Label("Match Graphs")
+    @Category("Keyword Spotting")
+    static class MatchEvent extends Event {
+
+        @Label("Queries")
+        int queries;
+
+        @Label("Words")
+        int words;
+
+        @Label("Top N")
+        int topN;
+
+        @Label("Pairs")
+        long pairs;
+
+        @Label("Pruned")
+        long pruned;
+
+        @Label("Abandoned")
+        long abandoned;
+    }
+
+}
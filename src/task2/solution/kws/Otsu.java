@@ -0,0 +1,83 @@
+package kws;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+/*
+ * Global binarization of a gray-scale page with the threshold of Otsu, as done by DIVAServices in Task 1.
+ *
+ * The threshold maximizes the variance between the two classes of the gray-value histogram. Pixels with a gray
+ * value up to the threshold are ink.
+ */
+public class Otsu {
+
+    private Otsu() {
+    }
+
+    /*
+     * Gray values of an image, row by row. Images that are not gray-scale are converted with the luminance.
+     */
+    public static int[] gray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            gray.getGraphics().drawImage(image, 0, 0, null);
+            image = gray;
+        }
+        Raster raster = image.getRaster();
+        return raster.getSamples(0, 0, width, height, 0, new int[width * height]);
+    }
+
+    /*
+     * Threshold of Otsu for 8-bit gray values.
+     */
+    public static int threshold(int[] gray) {
+        long[] histogram = new long[256];
+        for (int value : gray) {
+            histogram[value]++;
+        }
+        long total = gray.length;
+        double sum = 0;
+        for (int t = 0; t < 256; t++) {
+            sum += (double) t * histogram[t];
+        }
+
+        double sumBackground = 0;
+        long weightBackground = 0;
+        double bestVariance = -1;
+        int best = 0;
+        for (int t = 0; t < 256; t++) {
+            weightBackground += histogram[t];
+            if (weightBackground == 0) {
+                continue;
+            }
+            long weightForeground = total - weightBackground;
+            if (weightForeground == 0) {
+                break;
+            }
+            sumBackground += (double) t * histogram[t];
+            double meanBackground = sumBackground / weightBackground;
+            double meanForeground = (sum - sumBackground) / weightForeground;
+            double variance = (double) weightBackground * weightForeground
+                    * (meanBackground - meanForeground) * (meanBackground - meanForeground);
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Ink mask of the gray values, true for the pixels up to the threshold.
+     */
+    public static boolean[] binarize(int[] gray, int threshold) {
+        boolean[] ink = new boolean[gray.length];
+        for (int i = 0; i < gray.length; i++) {
+            ink[i] = gray[i] <= threshold;
+        }
+        return ink;
+    }
+
+}
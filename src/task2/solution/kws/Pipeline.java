@@ -0,0 +1,550 @@
+package kws;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Streaming replacement of Task 1: page ids go in, searchable Corpus snapshots come out.
+ *
+ * Unlike Preprocessor, which processes a fixed set of pages and returns when all of them are done, the pipeline
+ * keeps running and publishes a new snapshot as soon as all words of a page are extracted. The steps of
+ * Preprocessor are split into stages with their own threads, connected by bounded queues:
+ *
+ * 1. decode     read the page image and the word locations (page threads)
+ * 2. binarize   binarize the page with the threshold of Otsu (page threads)
+ * 3. crop       cut the ink and the mask of each word from the binary page (page threads)
+ * 4. extract    extract and normalize the keypoint graph of each word (word threads)
+ * 5. index      collect the graphs of each page and publish a snapshot (one thread)
+ *
+ * When a queue is full, the stage in front of it waits (backpressure): slow extraction holds back decoding instead
+ * of piling up decoded pages in memory. At most PAGE_QUEUE pages wait in front of each page stage and WORD_QUEUE
+ * words in front of the word stages, and submit waits while the first queue is full.
+ *
+ * Nothing is written unless an output directory is set (setOutput), then the binary pages, word images and GXL
+ * files of Task 1 are written as by Preprocessor. Snapshots list the pages in the order of their ids and the words
+ * sorted by id, as CorpusLoader, and submitting a page again replaces its graphs.
+ *
+ * Usage: Pipeline [pathData]
+ */
+public class Pipeline implements AutoCloseable {
+
+    private static final int PAGE_QUEUE = 2;
+    private static final int WORD_QUEUE = 256;
+
+    private String pathData;
+    private ThreadLocal<KeypointExtractor> workspace;
+
+    private String pathOut;
+    private boolean writeImages;
+    private boolean writeGraphs;
+
+    private Stage<String> decode;
+    private Stage<Page> binarize;
+    private Stage<Page> crop;
+    private Stage<Word> extract;
+    private Stage<Word> index;
+
+    // graphs of the indexed pages by page id, accessed by the index thread only
+    private TreeMap<String, List<KPackedGraph>> pages = new TreeMap<String, List<KPackedGraph>>();
+    private volatile Corpus corpus = new Corpus(0, new ArrayList<KPackedGraph>());
+    private List<CorpusLoader.Failure> failures = Collections.synchronizedList(new ArrayList<CorpusLoader.Failure>());
+    private long startTime = System.currentTimeMillis();
+
+    // pages submitted and indexed, guarded by this
+    private int submitted;
+    private int indexed;
+
+    public Pipeline(String pathData, int distance, int pageThreads, int wordThreads) {
+        this.pathData = pathData;
+        workspace = ThreadLocal.withInitial(() -> new KeypointExtractor(distance));
+        index = new Stage<Word>("index", 1, WORD_QUEUE, this::index, this::abandon);
+        extract = new Stage<Word>("extract", wordThreads, WORD_QUEUE, this::extract, this::fail);
+        crop = new Stage<Page>("crop", pageThreads, PAGE_QUEUE, this::crop, this::failWords);
+        binarize = new Stage<Page>("binarize", pageThreads, PAGE_QUEUE, this::binarize,
+                (page, e) -> fail(page, page.imageFile, e));
+        decode = new Stage<String>("decode", pageThreads, PAGE_QUEUE, this::decode,
+                (pageId, e) -> fail(new Page(pageId, pathData), null, e));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        /*
+         * Settings, see Main
+         */
+
+        String pathData = "data";
+        String pathOut = null; // also write the files of Task 1 below this directory, see Preprocessor
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        int distance = KeypointExtractor.DISTANCE;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int pageThreads = Math.max(1, threads / 4); // for each of decode, binarize and crop
+        int wordThreads = threads; // for extract
+
+        if (args.length > 0) {
+            pathData = args[0];
+        }
+
+        /*
+         * Stream Pages
+         */
+
+        System.out.println("Streaming " + pageIds.length + " pages ...");
+        long startTime = System.currentTimeMillis();
+
+        try (Pipeline pipeline = new Pipeline(pathData, distance, pageThreads, wordThreads)) {
+            pipeline.setOutput(pathOut, true, true);
+            pipeline.submit(pageIds);
+            pipeline.awaitCompletion();
+            for (CorpusLoader.Failure failure : pipeline.getFailures()) {
+                System.err.println("    failed to process " + failure);
+            }
+
+            System.out.println("... done. Extracted "
+                    + pipeline.getCorpus().size() + " word graphs in "
+                    + (System.currentTimeMillis() - startTime) + " ms.\n");
+            System.out.print(pipeline.summary());
+        }
+    }
+
+    /*
+     * Write the binary pages, word images and GXL files below pathOut, in the directories of Task 1.
+     * Without pathOut (null), nothing is written. Applies to the pages that are decoded from now on.
+     */
+    public void setOutput(String pathOut, boolean writeImages, boolean writeGraphs) {
+        this.pathOut = pathOut;
+        this.writeImages = writeImages;
+        this.writeGraphs = writeGraphs;
+    }
+
+    /*
+     * Current snapshot.
+     */
+    public Corpus getCorpus() {
+        return corpus;
+    }
+
+    /*
+     * Pages and words that could not be processed so far.
+     */
+    public List<CorpusLoader.Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<CorpusLoader.Failure>(failures);
+        }
+    }
+
+    /*
+     * Add pages to the pipeline, waiting while it is full.
+     */
+    public void submit(String... pageIds) throws InterruptedException {
+        for (String pageId : pageIds) {
+            synchronized (this) {
+                submitted++;
+            }
+            decode.put(pageId);
+        }
+    }
+
+    /*
+     * Wait until all submitted pages are in the current snapshot.
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (indexed < submitted) {
+            wait();
+        }
+    }
+
+    /*
+     * Items, busy time and full-queue time of each stage. The busy time includes waiting for the queue of the next
+     * stage, the full time is how long the stages in front waited for this one: the stage whose queue is full most
+     * of the time holds back the others.
+     */
+    public String summary() {
+        StringBuilder s = new StringBuilder("Stages\n");
+        for (Stage<?> stage : new Stage<?>[]{decode, binarize, crop, extract, index}) {
+            s.append("    ").append(stage).append('\n');
+        }
+        return s.toString();
+    }
+
+    @Override
+    public void close() {
+        for (Stage<?> stage : new Stage<?>[]{decode, binarize, crop, extract, index}) {
+            stage.close();
+        }
+    }
+
+    private void decode(String pageId) throws InterruptedException {
+        Page page = new Page(pageId, pathData);
+        page.event.begin();
+        try {
+            page.imageFile = Paths.get(pathData, Preprocessor.DIR_IMAGES, pageId + "." + Preprocessor.TYPE_IMAGE)
+                    .toFile();
+            page.image = ImageIO.read(page.imageFile);
+            if (page.image == null) {
+                throw new IOException("Unsupported image format");
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(page, page.imageFile, e);
+            return;
+        }
+        try {
+            page.locationsFile = Paths.get(pathData, Preprocessor.DIR_LOCATIONS,
+                    pageId + "." + Preprocessor.TYPE_LOCATIONS).toFile();
+            page.words = WordLocations.read(page.locationsFile);
+            page.words.sort((w1, w2) -> w1.getId().compareTo(w2.getId()));
+        } catch (IOException | RuntimeException e) {
+            fail(page, page.locationsFile, e);
+            return;
+        }
+        page.pathOut = pathOut;
+        page.writeImages = pathOut != null && writeImages;
+        page.writeGraphs = pathOut != null && writeGraphs;
+        binarize.put(page);
+    }
+
+    private void binarize(Page page) throws InterruptedException {
+        try {
+            page.width = page.image.getWidth();
+            int[] gray = Otsu.gray(page.image);
+            page.image = null;
+            page.ink = Otsu.binarize(gray, Otsu.threshold(gray));
+            if (page.writeImages) {
+                Path dir = Files.createDirectories(Paths.get(page.pathOut, page.pageId, Preprocessor.DIR_BINARY_PAGE));
+                Preprocessor.write(Preprocessor.binaryPage(page.ink, page.width), "jpg",
+                        dir.resolve(page.pageId + "_binary." + Preprocessor.TYPE_IMAGE));
+                Files.createDirectories(Paths.get(page.pathOut, page.pageId, Preprocessor.DIR_IMG));
+            }
+            if (page.writeGraphs) {
+                Files.createDirectories(Paths.get(page.pathOut, page.pageId, Preprocessor.DIR_GXL));
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(page, page.imageFile, e);
+            return;
+        }
+        crop.put(page);
+    }
+
+    private void crop(Page page) throws InterruptedException {
+        for (int w = 0; w < page.words.size(); w++) {
+            Word word = new Word(page, w);
+            try {
+                word.bounds = word.location.getBounds();
+                word.inside = word.location.mask();
+                word.ink = Preprocessor.crop(page.ink, page.width, word.bounds, word.inside);
+            } catch (IOException | RuntimeException e) {
+                failures.add(new CorpusLoader.Failure(word.file(), e));
+                index.put(word);
+                page.cropped++;
+                continue;
+            }
+            extract.put(word);
+            page.cropped++;
+        }
+        page.ink = null;
+        if (page.words.isEmpty()) {
+            index.put(new Word(page, -1));
+        }
+    }
+
+    private void extract(Word word) throws InterruptedException {
+        Page page = word.page;
+        try {
+            KDoubleGraph graph = workspace.get().extract(word.location.getId(), word.ink, word.bounds.width,
+                    word.bounds.height);
+            if (page.writeImages) {
+                Preprocessor.write(Preprocessor.wordImage(word.inside, word.ink, word.bounds.width,
+                        word.bounds.height), Preprocessor.TYPE_IMG, Paths.get(page.pathOut, page.pageId,
+                        Preprocessor.DIR_IMG, word.location.getId() + "." + Preprocessor.TYPE_IMG));
+            }
+            if (page.writeGraphs) {
+                GXLWriter.write(graph, Paths.get(page.pathOut, page.pageId, Preprocessor.DIR_GXL,
+                        word.location.getId() + "." + Preprocessor.TYPE_GXL).toFile());
+            }
+            graph.normalize();
+            word.graph = graph;
+        } catch (IOException | RuntimeException e) {
+            failures.add(new CorpusLoader.Failure(word.file(), e));
+        }
+        word.inside = null;
+        word.ink = null;
+        index.put(word);
+    }
+
+    /*
+     * Collect the graph of a word, and publish a new snapshot when the last word of its page arrives.
+     */
+    private void index(Word word) {
+        Page page = word.page;
+        if (word.index >= 0) {
+            if (page.graphs == null) {
+                page.graphs = new KPackedGraph[page.words.size()];
+            }
+            page.graphs[word.index] = word.graph;
+            if (word.graph == null) {
+                page.failures++;
+            }
+            if (++page.indexed < page.words.size()) {
+                return;
+            }
+        }
+
+        List<KPackedGraph> pageGraphs = new ArrayList<KPackedGraph>();
+        for (KPackedGraph graph : page.graphs == null ? new KPackedGraph[0] : page.graphs) {
+            if (graph != null) {
+                pageGraphs.add(graph);
+            }
+        }
+        pages.put(page.pageId, pageGraphs);
+        List<KPackedGraph> graphs = new ArrayList<KPackedGraph>();
+        for (List<KPackedGraph> list : pages.values()) {
+            graphs.addAll(list);
+        }
+        corpus = new Corpus(corpus.getVersion() + 1, graphs);
+
+        page.event.source = "pipeline";
+        page.event.pageId = page.pageId;
+        page.event.graphs = pageGraphs.size();
+        page.event.failures = page.failures;
+        page.event.commit();
+        System.out.println("    corpus version " + corpus.getVersion() + " after "
+                + (System.currentTimeMillis() - startTime) + " ms: " + graphs.size() + " graphs (page "
+                + page.pageId + ": " + pageGraphs.size() + " graphs, " + page.failures + " failures)");
+        complete(page);
+    }
+
+    /*
+     * Count a page as indexed, once.
+     */
+    private synchronized void complete(Page page) {
+        if (!page.completed) {
+            page.completed = true;
+            indexed++;
+            notifyAll();
+        }
+    }
+
+    /*
+     * Leave out a page that cannot be read or binarized. It is published without graphs, such that it replaces an
+     * older version of the page and awaitCompletion returns.
+     */
+    private void fail(Page page, File file, Exception e) throws InterruptedException {
+        failures.add(new CorpusLoader.Failure(file != null ? file : page.pageFile, e));
+        page.failures++;
+        page.image = null;
+        page.ink = null;
+        index.put(new Word(page, -1));
+    }
+
+    /*
+     * Leave out the words of a page that were not passed on when cropping failed.
+     */
+    private void failWords(Page page, RuntimeException e) throws InterruptedException {
+        page.ink = null;
+        if (page.words.isEmpty()) {
+            index.put(new Word(page, -1));
+            return;
+        }
+        for (int w = page.cropped; w < page.words.size(); w++) {
+            Word word = new Word(page, w);
+            failures.add(new CorpusLoader.Failure(word.file(), e));
+            index.put(word);
+        }
+        page.cropped = page.words.size();
+    }
+
+    /*
+     * Leave out a word whose graph could not be extracted.
+     */
+    private void fail(Word word, RuntimeException e) throws InterruptedException {
+        failures.add(new CorpusLoader.Failure(word.file(), e));
+        word.graph = null;
+        word.inside = null;
+        word.ink = null;
+        index.put(word);
+    }
+
+    /*
+     * Give up a page that could not be indexed, such that awaitCompletion still returns. Its graphs are not
+     * published.
+     */
+    private void abandon(Word word, RuntimeException e) {
+        failures.add(new CorpusLoader.Failure(word.index >= 0 ? word.file() : word.page.pageFile, e));
+        complete(word.page);
+    }
+
+    /*
+     * Step of a stage, called for each item of its queue.
+     */
+    private interface Step<I> {
+
+        void process(I item) throws InterruptedException;
+    }
+
+    /*
+     * Handling of an item whose step failed with an unexpected exception: the item is passed on as failed, such that
+     * its page is still indexed.
+     */
+    private interface Recovery<I> {
+
+        void recover(I item, RuntimeException e) throws InterruptedException;
+    }
+
+    /*
+     * Bounded queue of items and the pool of threads that process them.
+     */
+    private static class Stage<I> {
+
+        private String name;
+        private BlockingQueue<I> queue;
+        private Step<I> step;
+        private Recovery<I> recovery;
+        private ExecutorService pool;
+
+        private LongAdder items = new LongAdder();
+        private LongAdder busyNanos = new LongAdder();
+        private LongAdder fullNanos = new LongAdder();
+
+        Stage(String name, int threads, int capacity, Step<I> step, Recovery<I> recovery) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<I>(capacity);
+            this.step = step;
+            this.recovery = recovery;
+            AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "pipeline-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int t = 0; t < threads; t++) {
+                pool.execute(this::run);
+            }
+        }
+
+        /*
+         * Add an item, waiting while the queue is full.
+         */
+        void put(I item) throws InterruptedException {
+            if (!queue.offer(item)) {
+                long start = System.nanoTime();
+                queue.put(item);
+                fullNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        void close() {
+            pool.shutdownNow();
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    I item = queue.take();
+                    long start = System.nanoTime();
+                    try {
+                        step.process(item);
+                    } catch (RuntimeException e) {
+                        System.err.println("    pipeline stage " + name + " failed: " + e);
+                        try {
+                            recovery.recover(item, e);
+                        } catch (RuntimeException again) {
+                            System.err.println("    pipeline stage " + name + " cannot recover: " + again);
+                        }
+                    }
+                    busyNanos.add(System.nanoTime() - start);
+                    items.increment();
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + items.sum() + " items, " + busyNanos.sum() / 1000000 + " ms busy, queue full for "
+                    + fullNanos.sum() / 1000000 + " ms";
+        }
+    }
+
+    /*
+     * A page on its way through the stages. The image and the ink are dropped as soon as they are not needed.
+     */
+    private static class Page {
+
+        private String pageId;
+        private Metrics.LoadEvent event = new Metrics.LoadEvent();
+
+        // files for the failures, pageFile also for page ids that are no valid path
+        private File pageFile;
+        private File imageFile;
+        private File locationsFile;
+
+        // output settings at the time the page was decoded
+        private String pathOut;
+        private boolean writeImages;
+        private boolean writeGraphs;
+
+        private BufferedImage image;
+        private int width;
+        private boolean[] ink;
+        private List<WordLocations.Word> words = new ArrayList<WordLocations.Word>();
+
+        // accessed by the index thread, once the page stages are done with the page
+        private KPackedGraph[] graphs;
+        private int indexed;
+        private int failures;
+        private boolean completed;
+
+        // words passed on by the crop stage
+        private int cropped;
+
+        Page(String pageId, String pathData) {
+            this.pageId = pageId;
+            pageFile = new File(pathData, pageId);
+        }
+    }
+
+    /*
+     * A word of a page, from its crop to its graph (null if it failed). Index -1 marks a page without words.
+     */
+    private static class Word {
+
+        private Page page;
+        private int index;
+        private WordLocations.Word location;
+
+        private Rectangle bounds;
+        private boolean[] inside;
+        private boolean[] ink;
+        private KPackedGraph graph;
+
+        Word(Page page, int index) {
+            this.page = page;
+            this.index = index;
+            this.location = index < 0 ? null : page.words.get(index);
+        }
+
+        File file() {
+            return new File(page.locationsFile.getPath() + "#" + location.getId());
+        }
+    }
+
+}
@@ -0,0 +1,326 @@
+package kws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Recall and speed of the EmbeddingIndex prefilter for a range of candidate counts K, measured with the
+ * transcription ground truth.
+ *
+ * Each query is matched with HED against the whole corpus (the exact ranking) and against its K candidates of the
+ * embedding only (the approximate ranking, words that are no candidates rank last). For each K, this reports:
+ * - the recall of the exact top-N among the approximate top-N
+ * - the recall of the relevant words (same transcription) among the candidates
+ * - mAP and P@k of the approximate ranking, see Evaluation
+ * - the time of the embedding scan plus HED on the candidates, relative to HED on the whole corpus
+ *
+ * The queries are evaluated in parallel, each worker thread with its own HED, the times are summed over the threads.
+ *
+ * Usage: PrefilterEvaluation [pathOut] [transcription]
+ */
+public class PrefilterEvaluation {
+
+    private Evaluation evaluation;
+    private List<KPackedGraph> corpus;
+    private EmbeddingIndex index;
+
+    public PrefilterEvaluation(Evaluation evaluation, EmbeddingIndex index) {
+        this.evaluation = evaluation;
+        this.corpus = index.getCorpus();
+        this.index = index;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Settings, see Evaluation
+         */
+
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+        String pathTranscription = "data/ground-truth/transcription.txt";
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        double nodeCost = 25.0;
+        double edgeCost = 50.0;
+
+        int[] candidates = {25, 50, 100, 200, 400, 800}; // K, the number of candidates matched with HED
+        int topN = 10;
+
+        boolean allInstances = false;
+        int maxQueries = 100;
+        int[] ks = {1, 5, 10};
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useStore = true;
+
+        if (args.length > 0) {
+            pathOut = args[0];
+        }
+        if (args.length > 1) {
+            pathTranscription = args[1];
+        }
+
+        /*
+         * Read Graphs
+         */
+
+        System.out.println("Reading page graphs ...");
+        double startTime = System.currentTimeMillis();
+
+        List<KPackedGraph> words = Main.getWords(pathOut, pageIds, threads, useStore);
+        Evaluation evaluation = new Evaluation(words, Evaluation.readTranscription(new File(pathTranscription)));
+        int[] queries = evaluation.queries(allInstances, maxQueries);
+
+        System.out.println("... done. Read "
+                + words.size() + " graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Embed Graphs
+         */
+
+        System.out.println("Embedding page graphs ...");
+        startTime = System.currentTimeMillis();
+
+        EmbeddingIndex index = new EmbeddingIndex(words);
+
+        System.out.println("... done. Embedded "
+                + words.size() + " graphs into " + EmbeddingIndex.DIMENSIONS + " dimensions in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Evaluate
+         */
+
+        System.out.println("Evaluating " + queries.length + " queries against " + words.size() + " words ...");
+        startTime = System.currentTimeMillis();
+
+        // the whole corpus as the last candidate count, for the quality of the exact ranking
+        int[] counts = Arrays.copyOf(candidates, candidates.length + 1);
+        counts[candidates.length] = words.size();
+        Tradeoff[] tradeoffs = new PrefilterEvaluation(evaluation, index)
+                .evaluate(new KCost(nodeCost, edgeCost), queries, counts, topN, ks, threads);
+
+        System.out.println("... done in " + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        for (Tradeoff tradeoff : tradeoffs) {
+            System.out.println(tradeoff);
+        }
+    }
+
+    /*
+     * Tradeoff of each candidate count, in the order of candidates. A candidate count of corpus.size() or more is
+     * the exact ranking.
+     */
+    public Tradeoff[] evaluate(KCost cost, int[] queries, int[] candidates, int topN, int[] ks, int parallelism) {
+        ThreadLocal<HED> workspace = ThreadLocal.withInitial(() -> new HED(cost));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new QueryTask(queries, 0, queries.length, candidates, topN, ks, workspace));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Tradeoff[] evaluate(HED hed, int query, int[] candidates, int topN, int[] ks) {
+        KPackedGraph graph = corpus.get(query);
+        int n = corpus.size();
+        Tradeoff[] tradeoffs = new Tradeoff[candidates.length];
+
+        // exact ranking
+        long start = System.nanoTime();
+        double[] exact = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (i != query) {
+                exact[i] = hed.match(graph, corpus.get(i));
+            }
+        }
+        long exactNanos = System.nanoTime() - start;
+        boolean[] exactTop = top(exact, query, null, topN);
+
+        // the candidates of all K in one scan (the first K of the ranking), including the query itself
+        int maxCandidates = 0;
+        for (int k : candidates) {
+            maxCandidates = Math.max(maxCandidates, k);
+        }
+        start = System.nanoTime();
+        int[] ranking = index.candidates(graph, Math.min(maxCandidates + 1, n));
+        long scanNanos = System.nanoTime() - start;
+
+        for (int c = 0; c < candidates.length; c++) {
+            Tradeoff tradeoff = new Tradeoff(candidates[c], topN, ks);
+            boolean[] candidate = new boolean[n];
+            int count = 0;
+            for (int r = 0; r < ranking.length && count < candidates[c]; r++) {
+                if (ranking[r] != query) {
+                    candidate[ranking[r]] = true;
+                    count++;
+                }
+            }
+
+            // approximate ranking: HED of the candidates, in corpus order as in EmbeddingIndex.search
+            start = System.nanoTime();
+            double[] approximate = new double[n];
+            for (int i = 0; i < n; i++) {
+                if (candidate[i]) {
+                    approximate[i] = hed.match(graph, corpus.get(i));
+                } else if (i != query) {
+                    approximate[i] = Double.POSITIVE_INFINITY;
+                }
+            }
+            tradeoff.exactNanos = exactNanos;
+            tradeoff.approximateNanos = scanNanos + System.nanoTime() - start;
+
+            boolean[] approximateTop = top(approximate, query, candidate, topN);
+            int relevant = 0;
+            for (int i = 0; i < n; i++) {
+                if (exactTop[i] && approximateTop[i]) {
+                    tradeoff.topRecall++;
+                }
+                if (candidate[i] && evaluation.isRelevant(query, i)) {
+                    relevant++;
+                }
+            }
+            tradeoff.topRecall /= Math.min(topN, n - 1);
+            tradeoff.relevantRecall = evaluation.relevantCount(query) == 0 ? 0
+                    : (double) relevant / evaluation.relevantCount(query);
+            evaluation.score(query, approximate, tradeoff.quality);
+            tradeoffs[c] = tradeoff;
+        }
+        return tradeoffs;
+    }
+
+    /*
+     * The topN words with the smallest distances (ties by index) other than the query, among the candidates if given.
+     */
+    private static boolean[] top(double[] distances, int query, boolean[] candidates, int topN) {
+        TopN top = new TopN(topN);
+        for (int i = 0; i < distances.length; i++) {
+            if (i != query && (candidates == null || candidates[i])) {
+                top.offer(i, distances[i]);
+            }
+        }
+        boolean[] selected = new boolean[distances.length];
+        for (int i : top.sortedIndices()) {
+            selected[i] = true;
+        }
+        return selected;
+    }
+
+    private class QueryTask extends RecursiveTask<Tradeoff[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private int[] queries;
+        private int from;
+        private int to;
+        private int[] candidates;
+        private int topN;
+        private int[] ks;
+        private ThreadLocal<HED> workspace;
+
+        QueryTask(int[] queries, int from, int to, int[] candidates, int topN, int[] ks,
+                  ThreadLocal<HED> workspace) {
+            this.queries = queries;
+            this.from = from;
+            this.to = to;
+            this.candidates = candidates;
+            this.topN = topN;
+            this.ks = ks;
+            this.workspace = workspace;
+        }
+
+        @Override
+        protected Tradeoff[] compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                QueryTask right = new QueryTask(queries, mid, to, candidates, topN, ks, workspace);
+                right.fork();
+                Tradeoff[] left = new QueryTask(queries, from, mid, candidates, topN, ks, workspace).compute();
+                Tradeoff[] other = right.join();
+                for (int c = 0; c < left.length; c++) {
+                    left[c].add(other[c]);
+                }
+                return left;
+            }
+            if (to == from) {
+                Tradeoff[] tradeoffs = new Tradeoff[candidates.length];
+                for (int c = 0; c < candidates.length; c++) {
+                    tradeoffs[c] = new Tradeoff(candidates[c], topN, ks);
+                }
+                return tradeoffs;
+            }
+            return evaluate(workspace.get(), queries[from], candidates, topN, ks);
+        }
+    }
+
+    /*
+     * Recall, retrieval quality and time of the prefilter with K candidates, summed over the queries.
+     */
+    public static class Tradeoff {
+
+        private int candidates;
+        private int topN;
+        private double topRecall;
+        private double relevantRecall;
+        private long exactNanos;
+        private long approximateNanos;
+        private Evaluation.Result quality;
+
+        Tradeoff(int candidates, int topN, int[] ks) {
+            this.candidates = candidates;
+            this.topN = topN;
+            quality = new Evaluation.Result(ks);
+        }
+
+        void add(Tradeoff other) {
+            topRecall += other.topRecall;
+            relevantRecall += other.relevantRecall;
+            exactNanos += other.exactNanos;
+            approximateNanos += other.approximateNanos;
+            quality.add(other.quality);
+        }
+
+        public int getCandidates() {
+            return candidates;
+        }
+
+        /*
+         * Mean fraction of the exact top-N that is also in the top-N of the candidates.
+         */
+        public double getTopRecall() {
+            return quality.getQueries() == 0 ? 0 : topRecall / quality.getQueries();
+        }
+
+        /*
+         * Mean fraction of the relevant words that are among the candidates.
+         */
+        public double getRelevantRecall() {
+            return quality.getQueries() == 0 ? 0 : relevantRecall / quality.getQueries();
+        }
+
+        /*
+         * Time of HED on the whole corpus divided by the time of the embedding scan plus HED on the candidates.
+         */
+        public double getSpeedup() {
+            return approximateNanos == 0 ? 0 : (double) exactNanos / approximateNanos;
+        }
+
+        public Evaluation.Result getQuality() {
+            return quality;
+        }
+
+        @Override
+        public String toString() {
+            return "K " + candidates + ": top-" + topN + " recall " + Math.round(getTopRecall() * 1000.0) / 1000.0
+                    + ", relevant recall " + Math.round(getRelevantRecall() * 1000.0) / 1000.0
+                    + ", speedup " + Math.round(getSpeedup() * 10.0) / 10.0 + "x, " + quality;
+        }
+    }
+
+}
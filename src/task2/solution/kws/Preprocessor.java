@@ -0,0 +1,372 @@
+package kws;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * In-process replacement of Task 1: from the page images to the keypoint graphs of the words, without uploading
+ * anything to DIVAServices.
+ *
+ * For each page:
+ * 1. the page image (data/images/<page>.jpg) is binarized with the threshold of Otsu
+ * 2. the word polygons are read from data/ground-truth/locations/<page>.svg, and each word is cut from the binary
+ *    page at the bounds of its polygon, pixels outside of the polygon are left out
+ * 3. the keypoint graph of each word is extracted (KeypointExtractor)
+ *
+ * Pages are processed in parallel on a fork-join pool, and the words of a page are split into tasks of BATCH_SIZE.
+ * The graphs are returned normalized, in the same order as CorpusLoader (pages in the given order, words sorted by
+ * id), such that they can be searched directly. With an output directory, the same files as in Task 1 are written
+ * as well (binary page, word images and GXL files), such that the other tools of Task 2 can read them.
+ *
+ * Usage: Preprocessor [pathData] [pathOut]
+ */
+public class Preprocessor {
+
+    static final String DIR_IMAGES = "images";
+    static final String TYPE_IMAGE = "jpg";
+    static final String DIR_LOCATIONS = "ground-truth/locations";
+    static final String TYPE_LOCATIONS = "svg";
+
+    static final String DIR_BINARY_PAGE = "binary_page";
+    static final String DIR_IMG = "words_binary";
+    static final String TYPE_IMG = "png";
+    static final String DIR_GXL = "graphs_binary";
+    static final String TYPE_GXL = "xml";
+
+    /*
+     * Words below this number are processed in a single task.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private String pathData;
+    private int parallelism;
+    private ThreadLocal<KeypointExtractor> workspace;
+
+    private String pathOut;
+    private boolean writeImages;
+    private boolean writeGraphs;
+
+    public Preprocessor(String pathData, int distance, int parallelism) {
+        this.pathData = pathData;
+        this.parallelism = parallelism;
+        workspace = ThreadLocal.withInitial(() -> new KeypointExtractor(distance));
+    }
+
+    public static void main(String[] args) {
+
+        /*
+         * Settings, see Main
+         */
+
+        String pathData = "data";
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        int distance = KeypointExtractor.DISTANCE; // pixels between the nodes along the skeleton
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean writeImages = true; // binary pages and word images, as displayed by Main
+        boolean writeGraphs = true; // GXL files, as read by Main
+
+        if (args.length > 0) {
+            pathData = args[0];
+        }
+        if (args.length > 1) {
+            pathOut = args[1];
+        }
+
+        /*
+         * Process Pages
+         */
+
+        System.out.println("Processing " + pageIds.length + " pages ...");
+        long startTime = System.currentTimeMillis();
+
+        Preprocessor preprocessor = new Preprocessor(pathData, distance, threads);
+        preprocessor.setOutput(pathOut, writeImages, writeGraphs);
+        CorpusLoader.Result result = preprocessor.process(pageIds);
+        for (CorpusLoader.PageTiming timing : result.getTimings()) {
+            System.out.println("    page " + timing);
+        }
+        for (CorpusLoader.Failure failure : result.getFailures()) {
+            System.err.println("    failed to process " + failure);
+        }
+
+        System.out.println("... done. Extracted "
+                + result.getGraphs().size() + " word graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.");
+    }
+
+    /*
+     * Write the binary pages, word images and GXL files below pathOut, in the directories of Task 1.
+     * Without pathOut (null), nothing is written.
+     */
+    public void setOutput(String pathOut, boolean writeImages, boolean writeGraphs) {
+        this.pathOut = pathOut;
+        this.writeImages = writeImages;
+        this.writeGraphs = writeGraphs;
+    }
+
+    /*
+     * Process all pages in parallel. The timings report the extraction time summed over all threads as parse time.
+     */
+    public CorpusLoader.Result process(String[] pageIds) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new PagesTask(pageIds));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Process a single page. Words that cannot be processed are added to failures and left out, as well as the
+     * whole page if its image or word locations cannot be read.
+     */
+    public List<KPackedGraph> process(String pageId, List<CorpusLoader.Failure> failures) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            PageTask page = new PageTask(pageId);
+            pool.invoke(page);
+            failures.addAll(page.failures);
+            return page.graphs();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private class PagesTask extends RecursiveTask<CorpusLoader.Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private String[] pageIds;
+
+        PagesTask(String[] pageIds) {
+            this.pageIds = pageIds;
+        }
+
+        @Override
+        protected CorpusLoader.Result compute() {
+            List<PageTask> pages = new ArrayList<PageTask>();
+            for (String pageId : pageIds) {
+                pages.add(new PageTask(pageId));
+            }
+            invokeAll(pages);
+
+            List<KPackedGraph> graphs = new ArrayList<KPackedGraph>();
+            List<CorpusLoader.Failure> failures = new ArrayList<CorpusLoader.Failure>();
+            List<CorpusLoader.PageTiming> timings = new ArrayList<CorpusLoader.PageTiming>();
+            for (PageTask page : pages) {
+                List<KPackedGraph> pageGraphs = page.graphs();
+                graphs.addAll(pageGraphs);
+                failures.addAll(page.failures);
+                timings.add(new CorpusLoader.PageTiming(page.pageId, pageGraphs.size(), page.failures.size(),
+                        page.wallNanos / 1e6, page.extractNanos.get() / 1e6));
+            }
+            return new CorpusLoader.Result(graphs, failures, timings);
+        }
+    }
+
+    /*
+     * Binarize a page and process its words in parallel.
+     */
+    private class PageTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private String pageId;
+        private int width;
+        private boolean[] ink;
+        private List<WordLocations.Word> words = new ArrayList<WordLocations.Word>();
+        private KPackedGraph[] graphs = new KPackedGraph[0];
+        private List<CorpusLoader.Failure> failures = Collections.synchronizedList(
+                new ArrayList<CorpusLoader.Failure>());
+
+        private long wallNanos;
+        private AtomicLong extractNanos = new AtomicLong();
+
+        PageTask(String pageId) {
+            this.pageId = pageId;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.nanoTime();
+            File image = Paths.get(pathData, DIR_IMAGES, pageId + "." + TYPE_IMAGE).toFile();
+            File svg = Paths.get(pathData, DIR_LOCATIONS, pageId + "." + TYPE_LOCATIONS).toFile();
+            try {
+                BufferedImage page = ImageIO.read(image);
+                if (page == null) {
+                    throw new IOException("Unsupported image format");
+                }
+                width = page.getWidth();
+                int[] gray = Otsu.gray(page);
+                ink = Otsu.binarize(gray, Otsu.threshold(gray));
+                if (pathOut != null && writeImages) {
+                    Path dir = Files.createDirectories(Paths.get(pathOut, pageId, DIR_BINARY_PAGE));
+                    write(binaryPage(ink, width), "jpg", dir.resolve(pageId + "_binary." + TYPE_IMAGE));
+                }
+            } catch (IOException | RuntimeException e) {
+                failures.add(new CorpusLoader.Failure(image, e));
+                return;
+            }
+            try {
+                words = WordLocations.read(svg);
+                words.sort((w1, w2) -> w1.getId().compareTo(w2.getId()));
+                if (pathOut != null && writeImages) {
+                    Files.createDirectories(Paths.get(pathOut, pageId, DIR_IMG));
+                }
+                if (pathOut != null && writeGraphs) {
+                    Files.createDirectories(Paths.get(pathOut, pageId, DIR_GXL));
+                }
+            } catch (IOException | RuntimeException e) {
+                failures.add(new CorpusLoader.Failure(svg, e));
+                return;
+            }
+            graphs = new KPackedGraph[words.size()];
+            new WordTask(this, 0, words.size()).invoke();
+            wallNanos = System.nanoTime() - start;
+        }
+
+        /*
+         * Graphs of the words that were processed, in word order.
+         */
+        List<KPackedGraph> graphs() {
+            List<KPackedGraph> list = new ArrayList<KPackedGraph>();
+            for (KPackedGraph graph : graphs) {
+                if (graph != null) {
+                    list.add(graph);
+                }
+            }
+            return list;
+        }
+    }
+
+    private class WordTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private PageTask page;
+        private int from;
+        private int to;
+
+        WordTask(PageTask page, int from, int to) {
+            this.page = page;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new WordTask(page, from, mid), new WordTask(page, mid, to));
+                return;
+            }
+            long start = System.nanoTime();
+            KeypointExtractor extractor = workspace.get();
+            for (int w = from; w < to; w++) {
+                WordLocations.Word word = page.words.get(w);
+                try {
+                    page.graphs[w] = process(page, word, extractor);
+                } catch (IOException | RuntimeException e) {
+                    page.failures.add(new CorpusLoader.Failure(
+                            Paths.get(pathData, DIR_LOCATIONS, page.pageId + "." + TYPE_LOCATIONS + "#" + word.getId())
+                                    .toFile(), e));
+                }
+            }
+            page.extractNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Cut a word from the binary page and extract its graph, normalized as by GXLReader.
+     */
+    private KPackedGraph process(PageTask page, WordLocations.Word word, KeypointExtractor extractor)
+            throws IOException {
+        Rectangle bounds = word.getBounds();
+        boolean[] inside = word.mask();
+        boolean[] ink = crop(page.ink, page.width, bounds, inside);
+
+        KDoubleGraph graph = extractor.extract(word.getId(), ink, bounds.width, bounds.height);
+        if (pathOut != null && writeImages) {
+            write(wordImage(inside, ink, bounds.width, bounds.height), TYPE_IMG,
+                    Paths.get(pathOut, page.pageId, DIR_IMG, word.getId() + "." + TYPE_IMG));
+        }
+        if (pathOut != null && writeGraphs) {
+            GXLWriter.write(graph, Paths.get(pathOut, page.pageId, DIR_GXL, word.getId() + "." + TYPE_GXL).toFile());
+        }
+        graph.normalize();
+        return graph;
+    }
+
+    /*
+     * Ink of the binary page (row by row, width pixels per row) within the bounds of a word and its mask.
+     */
+    static boolean[] crop(boolean[] pageInk, int width, Rectangle bounds, boolean[] inside) throws IOException {
+        int height = pageInk.length / width;
+        if (bounds.x < 0 || bounds.y < 0 || bounds.x + bounds.width > width || bounds.y + bounds.height > height) {
+            throw new IOException("Word outside of the page: " + bounds);
+        }
+        boolean[] ink = new boolean[inside.length];
+        for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+                int i = y * bounds.width + x;
+                ink[i] = inside[i] && pageInk[(bounds.y + y) * width + bounds.x + x];
+            }
+        }
+        return ink;
+    }
+
+    /*
+     * Binary page as in Task 1: black ink on white.
+     */
+    static BufferedImage binaryPage(boolean[] ink, int width) {
+        BufferedImage binary = new BufferedImage(width, ink.length / width, BufferedImage.TYPE_BYTE_GRAY);
+        int[] samples = new int[ink.length];
+        for (int i = 0; i < ink.length; i++) {
+            samples[i] = ink[i] ? 0 : 255;
+        }
+        binary.getRaster().setSamples(0, 0, width, ink.length / width, 0, samples);
+        return binary;
+    }
+
+    /*
+     * Word image as in Task 1: black ink on white, transparent outside of the polygon.
+     */
+    static BufferedImage wordImage(boolean[] inside, boolean[] ink, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        int[] argb = new int[inside.length];
+        for (int i = 0; i < inside.length; i++) {
+            argb[i] = !inside[i] ? 0 : (ink[i] ? 0xff000000 : 0xffffffff);
+        }
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        return image;
+    }
+
+    /*
+     * Write an image through a temporary file, such that readers never see a partial one.
+     */
+    static void write(BufferedImage image, String format, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        if (!ImageIO.write(image, format, tmp.toFile())) {
+            throw new IOException("No writer for " + format);
+        }
+        AtomicFiles.replace(tmp, file);
+    }
+
+}
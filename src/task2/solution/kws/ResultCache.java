@@ -0,0 +1,277 @@
+package kws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Cache of top-N query results.
+ *
+ * Results are keyed by a content hash of the query graph (node coordinates and edges, not its id), the cost
+ * parameters and the version of the corpus, which is a content hash of all word graphs. Adding or changing a page
+ * changes the corpus version. Only the entries of the current corpus (setCorpus) are read and written, the ones of
+ * other versions are dropped when a newer snapshot becomes current. Searches that still run on an older snapshot
+ * thus neither see nor evict the entries of the current one. An entry computed for topN results also answers
+ * queries for fewer results, since the ranking is deterministic.
+ *
+ * The entries are kept in an LRU map of at most capacity entries and, optionally, in a directory on disk with one
+ * file per entry, such that they survive a restart.
+ */
+public class ResultCache {
+
+    private static final int MAGIC = 0x4B524331; // "KRC1"
+    private static final String TYPE_ENTRY = "krc";
+
+    private Map<String, Entry> entries;
+    private File directory;
+    // current corpus: snapshot version (Corpus.getVersion) and content version of the keys
+    private long corpusVersion = -1;
+    private String version;
+
+    // statistics
+    private long hits;
+    private long misses;
+
+    public ResultCache(int capacity, File directory) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.directory = directory;
+        if (directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+    public ResultCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /*
+     * Cache key of a query against the corpus with the given version.
+     */
+    public static String key(KPackedGraph query, KCost cost, String corpusVersion) {
+        return corpusVersion + "-" + hash(query) + "-"
+                + Long.toHexString(Double.doubleToLongBits(cost.nodeDelIns())) + "-"
+                + Long.toHexString(Double.doubleToLongBits(cost.edgeDelIns()));
+    }
+
+    /*
+     * Make the snapshot the current corpus if it is newer than the current one (by Corpus.getVersion), and drop
+     * the entries of all other corpus versions in memory and on disk.
+     */
+    public synchronized void setCorpus(Corpus corpus) {
+        if (version != null && corpus.getVersion() <= corpusVersion) {
+            return;
+        }
+        corpusVersion = corpus.getVersion();
+        String contentVersion = corpus.getContentVersion();
+        if (contentVersion.equals(version)) {
+            return;
+        }
+        version = contentVersion;
+        entries.keySet().removeIf(k -> !isCurrent(k));
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith("." + TYPE_ENTRY) && !isCurrent(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /*
+     * Cached top-N results for the key, or null if there are none for at least topN results or the key is not of
+     * the current corpus.
+     */
+    public synchronized List<MatchEngine.Match> get(String key, int topN) {
+        if (!isCurrent(key)) {
+            misses++;
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null && directory != null) {
+            entry = read(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        if (entry == null || !entry.answers(topN)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<MatchEngine.Match>(entry.matches.subList(0, Math.min(topN, entry.matches.size())));
+    }
+
+    /*
+     * Keep the results for the key, unless it is not of the current corpus.
+     */
+    public synchronized void put(String key, int topN, List<MatchEngine.Match> matches) {
+        if (!isCurrent(key)) {
+            return;
+        }
+        Entry entry = new Entry(topN, new ArrayList<MatchEngine.Match>(matches));
+        entries.put(key, entry);
+        if (directory != null) {
+            try {
+                write(key, entry);
+            } catch (IOException e) {
+                System.err.println("    cannot write cache entry " + key + ": " + e);
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private boolean isCurrent(String key) {
+        return version != null && key.startsWith(version + "-");
+    }
+
+    private File file(String key) {
+        return new File(directory, key + "." + TYPE_ENTRY);
+    }
+
+    private Entry read(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {
+                return null;
+            }
+            int topN = in.readInt();
+            int size = in.readInt();
+            List<MatchEngine.Match> matches = new ArrayList<MatchEngine.Match>(size);
+            for (int k = 0; k < size; k++) {
+                matches.add(new MatchEngine.Match(in.readInt(), in.readUTF(), in.readDouble()));
+            }
+            return new Entry(topN, matches);
+        } catch (IOException e) {
+            System.err.println("    ignoring unreadable cache entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void write(String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeUTF(key);
+        out.writeInt(entry.topN);
+        out.writeInt(entry.matches.size());
+        for (MatchEngine.Match match : entry.matches) {
+            out.writeInt(match.getIndex());
+            out.writeUTF(match.getGraphId());
+            out.writeDouble(match.getDistance());
+        }
+        out.flush();
+
+        File file = file(key);
+        Path tmp = Paths.get(file.getPath() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        AtomicFiles.replace(tmp, file.toPath());
+    }
+
+    /*
+     * Content hash of a graph: node coordinates and edges.
+     */
+    public static String hash(KPackedGraph graph) {
+        MessageDigest digest = sha256();
+        update(digest, graph);
+        return hex(digest.digest());
+    }
+
+    /*
+     * Version of a corpus: content hash of the ids and graphs of all words, in corpus order.
+     */
+    public static String version(List<KPackedGraph> corpus) {
+        MessageDigest digest = sha256();
+        for (KPackedGraph graph : corpus) {
+            digest.update(graph.getGraphId().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            update(digest, graph);
+        }
+        return hex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, KPackedGraph graph) {
+        int n = graph.size();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 16 * n + 4 * (n + 1) + 4 * graph.edgeCount());
+        buffer.putInt(n);
+        for (int i = 0; i < n; i++) {
+            buffer.putDouble(graph.getX(i));
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.putDouble(graph.getY(i));
+        }
+        for (int i = 0; i <= n; i++) {
+            buffer.putInt(graph.firstEdge(i));
+        }
+        for (int e = 0; e < graph.edgeCount(); e++) {
+            buffer.putInt(graph.goal(e));
+        }
+        digest.update(buffer.array());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * First 16 bytes of the digest in hex.
+     */
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (int k = 0; k < 16; k++) {
+            hex.append(String.format("%02x", digest[k]));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+
+        private int topN;
+        private List<MatchEngine.Match> matches;
+
+        Entry(int topN, List<MatchEngine.Match> matches) {
+            this.topN = topN;
+            this.matches = matches;
+        }
+
+        /*
+         * True if the entry contains the results of a query for topN results.
+         */
+        boolean answers(int topN) {
+            return topN <= this.topN || matches.size() < this.topN;
+        }
+    }
+
+}
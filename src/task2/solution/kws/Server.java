@@ -0,0 +1,340 @@
+package kws;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * Keyword spotting server: keeps the page graphs in memory and answers queries over HTTP on localhost.
+ *
+ * Endpoints (responses are JSON):
+ * - GET  /search?keyword=270-01-05&topN=10   match a word graph of the loaded pages
+ * - POST /search?topN=10 with a GXL document  match an uploaded keyword graph
+ * - ...&candidates=200                        match only the 200 closest words of the EmbeddingIndex (approximate)
+ * - ...&rerank=50                             re-rank the 50 best words of HED with the BipartiteGED
+ * - GET  /stats                              latency percentiles of the recent queries
+ *
+ * topN, candidates and rerank must be between 1 and MAX_COUNT (400 otherwise) and are limited to the size of the
+ * corpus.
+ *
+ * Requests are handled on a bounded pool of HANDLERS threads with a queue of QUEUE_SIZE requests. When the queue is
+ * full, the request is handled by the thread that accepts the connections, which slows down accepting new ones.
+ * Each query is matched in parallel by the shared MatchEngine, unless its results are in the ResultCache.
+ *
+ * Each query is answered from the corpus snapshot that is current when it starts. With watch enabled, a
+ * CorpusWatcher adds new and changed word graphs of the pages while the server is running. With preprocess enabled,
+ * the graphs are extracted from the page images by a Pipeline instead, and each page becomes searchable as soon as
+ * it is through.
+ *
+ * Usage: Server [pathOut] [port]
+ */
+public class Server {
+
+    private static final int HANDLERS = 4;
+    private static final int QUEUE_SIZE = 64;
+    private static final int MAX_UPLOAD = 1 << 20;
+    private static final int MAX_COUNT = 100000; // largest topN, candidates or rerank of a request
+    private static final String DIR_CACHE = "cache";
+
+    private Supplier<Corpus> corpus;
+    private MatchEngine engine;
+    private int defaultTopN;
+    private ResultCache cache;
+    private LatencyRecorder latencies = new LatencyRecorder();
+
+    /*
+     * The corpus supplies the current snapshot for each query, the cache is optional (null).
+     */
+    public Server(Supplier<Corpus> corpus, MatchEngine engine, int defaultTopN, ResultCache cache) {
+        this.corpus = corpus;
+        this.engine = engine;
+        this.defaultTopN = defaultTopN;
+        this.cache = cache;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        /*
+         * Settings, see Main
+         */
+
+        String pathOut = "C:\\Users\\marce\\DEV\\SummerSchool_Lab\\out";
+        int port = 8080;
+
+        String[] pageIds = {"270", "271", "272", "273", "274", "275", "276", "277", "278", "279", "300", "301", "302", "303", "304"};
+
+        double nodeCost = 25.0;
+        double edgeCost = 50.0;
+
+        int topN = 10;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useStore = true;
+        boolean pruning = true;
+        boolean spatialIndex = false;
+        int cacheSize = 1000; // results of this many queries are kept in memory, 0 turns off the cache
+        boolean cacheOnDisk = false; // also keep the cached results in pathOut
+        boolean watch = true; // add new and changed word graphs of the pages while running, see CorpusWatcher
+        boolean preprocess = false; // extract the graphs from the page images in pathData while running, see Pipeline
+        String pathData = "data";
+
+        if (args.length > 0) {
+            pathOut = args[0];
+        }
+        if (args.length > 1) {
+            port = Integer.parseInt(args[1]);
+        }
+
+        /*
+         * Read Graphs
+         */
+
+        System.out.println("Reading page graphs ...");
+        long startTime = System.currentTimeMillis();
+
+        List<KPackedGraph> words;
+        Supplier<Corpus> corpus;
+        if (preprocess) {
+            Pipeline pipeline = new Pipeline(pathData, KeypointExtractor.DISTANCE, Math.max(1, threads / 4), threads);
+            Thread feeder = new Thread(() -> {
+                try {
+                    pipeline.submit(pageIds);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }, "pipeline-feeder");
+            feeder.setDaemon(true);
+            feeder.start();
+            words = pipeline.getCorpus().getGraphs();
+            corpus = pipeline::getCorpus;
+        } else if (watch) {
+            words = Main.getWords(pathOut, pageIds, threads, useStore);
+            CorpusWatcher watcher = new CorpusWatcher(pathOut, pageIds, new CorpusLoader(threads));
+            words = watcher.start(words, startTime).getGraphs();
+            corpus = watcher::getCorpus;
+        } else {
+            words = Main.getWords(pathOut, pageIds, threads, useStore);
+            Corpus fixed = new Corpus(1, words);
+            corpus = () -> fixed;
+        }
+
+        System.out.println("... done. Read "
+                + words.size() + " graphs in "
+                + (System.currentTimeMillis() - startTime) + " ms.\n");
+
+        /*
+         * Serve
+         */
+
+        MatchEngine engine = new MatchEngine(new KCost(nodeCost, edgeCost), threads);
+        engine.setPruning(pruning);
+        engine.setSpatialIndex(spatialIndex);
+        ResultCache cache = cacheSize <= 0 ? null
+                : new ResultCache(cacheSize, cacheOnDisk ? Paths.get(pathOut, DIR_CACHE).toFile() : null);
+        HttpServer server = new Server(corpus, engine, topN, cache).start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> Metrics.printSummary(System.out)));
+        System.out.println("Listening on http://localhost:" + server.getAddress().getPort() + "/search");
+    }
+
+    /*
+     * Start serving on the loopback interface, port 0 picks a free port.
+     */
+    public HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", this::search);
+        server.createContext("/stats", this::stats);
+        server.setExecutor(new ThreadPoolExecutor(HANDLERS, HANDLERS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy()));
+        server.start();
+        return server;
+    }
+
+    public LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        try {
+            long start = System.nanoTime();
+            Corpus snapshot = corpus.get();
+            Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+            int topN = Math.min(count(parameters, "topN", defaultTopN), snapshot.size());
+            int candidates = Math.min(count(parameters, "candidates", 0), snapshot.size());
+            int rerank = Math.min(count(parameters, "rerank", 0), snapshot.size());
+
+            KPackedGraph query;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                byte[] gxl = readBody(exchange.getRequestBody());
+                if (gxl == null) {
+                    send(exchange, 413, error("GXL document larger than " + MAX_UPLOAD + " bytes"));
+                    return;
+                }
+                String queryId = parameters.containsKey("id") ? parameters.get("id") : "query";
+                try {
+                    query = GXLReader.readPacked(new ByteArrayInputStream(gxl), queryId);
+                } catch (IOException e) {
+                    send(exchange, 400, error("cannot read GXL: " + e.getMessage()));
+                    return;
+                }
+            } else {
+                String keywordId = parameters.get("keyword");
+                query = keywordId == null ? null : snapshot.find(keywordId);
+                if (query == null) {
+                    send(exchange, 404, error("unknown keyword " + keywordId));
+                    return;
+                }
+            }
+
+            if (cache != null) {
+                cache.setCorpus(snapshot);
+            }
+            String cacheKey = cache == null ? null
+                    : ResultCache.key(query, engine.getCost(), snapshot.getContentVersion())
+                    + (candidates > 0 ? "-k" + candidates : "") + (rerank > 0 ? "-r" + rerank : "");
+            List<MatchEngine.Match> matches = cache == null ? null : cache.get(cacheKey, topN);
+            boolean cached = matches != null;
+            if (!cached) {
+                int firstN = Math.max(rerank, topN);
+                if (candidates > 0) {
+                    matches = snapshot.getEmbeddingIndex().search(query, candidates, engine, firstN,
+                            new MatchEngine.Stats());
+                } else {
+                    matches = engine.search(query, snapshot.getGraphs(), firstN);
+                }
+                if (rerank > 0) {
+                    matches = engine.rerank(query, snapshot.getGraphs(), matches, rerank, topN);
+                }
+                if (cache != null) {
+                    cache.put(cacheKey, topN, matches);
+                }
+            }
+            long latency = System.nanoTime() - start;
+            latencies.record(latency);
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"query\":").append(quote(query.getGraphId()));
+            json.append(",\"topN\":").append(topN);
+            json.append(",\"corpusVersion\":").append(snapshot.getVersion());
+            json.append(",\"cached\":").append(cached);
+            json.append(",\"millis\":").append(latency / 1e6);
+            json.append(",\"results\":[");
+            for (int i = 0; i < matches.size(); i++) {
+                MatchEngine.Match match = matches.get(i);
+                json.append(i == 0 ? "" : ",");
+                json.append("{\"id\":").append(quote(match.getGraphId()));
+                json.append(",\"distance\":").append(match.getDistance()).append("}");
+            }
+            json.append("]}");
+            send(exchange, 200, json.toString());
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error("invalid parameter: " + e.getMessage()));
+        } catch (RuntimeException e) {
+            send(exchange, 500, error(e.toString()));
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        long[] sorted = latencies.sorted();
+        String json = "{\"queries\":" + latencies.getCount()
+                + ",\"window\":" + sorted.length
+                + ",\"p50\":" + LatencyRecorder.percentile(sorted, 50)
+                + ",\"p90\":" + LatencyRecorder.percentile(sorted, 90)
+                + ",\"p99\":" + LatencyRecorder.percentile(sorted, 99)
+                + ",\"max\":" + LatencyRecorder.percentile(sorted, 100)
+                + (cache == null ? "" : ",\"cacheHits\":" + cache.getHits() + ",\"cacheMisses\":" + cache.getMisses())
+                + "}";
+        send(exchange, 200, json);
+    }
+
+    /*
+     * Request body, or null if it is larger than MAX_UPLOAD.
+     */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+            if (body.size() > MAX_UPLOAD) {
+                return null;
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /*
+     * Count parameter (topN, candidates, rerank) between 1 and MAX_COUNT, or defaultValue if it is not given.
+     */
+    private static int count(Map<String, String> parameters, String name, int defaultValue) {
+        String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        int count = Integer.parseInt(value);
+        if (count <= 0 || count > MAX_COUNT) {
+            throw new IllegalArgumentException(name + " must be between 1 and " + MAX_COUNT);
+        }
+        return count;
+    }
+
+    private static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
@@ -0,0 +1,54 @@
+package kws;
+
+/*
+ * Dense node substitution of HED for one node of g1 against all nodes of g2, in a form that can be vectorized.
+ *
+ * For a Euclidean node substitution cost and constant edge substitution costs (KCost.hasEuclideanNodeSub and
+ * hasConstantEdgeSub), the substitution cost of node i in g1 with node j in g2 is
+ *
+ *     0.5 * (sqrt(dx^2 + dy^2) + 0.5 * edgeTable[edgeRow + degrees[j]])
+ *
+ * with the edge matching cost looked up by the degrees of i (edgeRow) and j. row computes this cost for all j,
+ * lowers costBA[j] to it where smaller and returns the minimum of deletion and all costs, i.e. the final cost
+ * A -> B of node i. The operations are the same as in the scalar loop of HED, in the same order, so the results
+ * are identical.
+ *
+ * The implementation with the Vector API (jdk.incubator.vector) is VectorSubstitution in src/task2/vector. It is
+ * compiled separately, since the incubator module has to be added explicitly, and loaded on first use if it is on
+ * the class path and the module is resolved:
+ *
+ *     javac --add-modules jdk.incubator.vector -cp . -d . kws/*.java ../vector/kws/*.java
+ *     java --add-modules jdk.incubator.vector kws.Main
+ *
+ * Otherwise, load returns null and HED keeps its scalar loop.
+ */
+interface SubstitutionKernel {
+
+    String VECTOR_CLASS = "kws.VectorSubstitution";
+
+    double row(double x, double y, double[] xs, double[] ys, int[] degrees, int n, double[] edgeTable, int edgeRow,
+               double deletion, double[] costBA);
+
+    /*
+     * The vectorized kernel, or null if it is not available (class not compiled, module not resolved or no SIMD
+     * support for doubles on this CPU).
+     */
+    static SubstitutionKernel load() {
+        return Holder.KERNEL;
+    }
+
+    final class Holder {
+
+        static final SubstitutionKernel KERNEL = create();
+
+        private static SubstitutionKernel create() {
+            try {
+                return (SubstitutionKernel) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+    }
+
+}
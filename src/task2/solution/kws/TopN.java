@@ -0,0 +1,155 @@
+package kws;
+
+/*
+ * Streaming top-N selection of the smallest distances.
+ *
+ * Keeps the N best (corpus index, distance) pairs in a bounded max-heap on primitive arrays, such that offering a
+ * result costs O(log N) and no objects are created. Results are ordered by distance and, for equal distances, by
+ * index. Collectors of parallel workers can be merged, the merged result does not depend on how the results
+ * were distributed over the collectors.
+ *
+ * threshold() is the current N-th best distance: a candidate whose distance is certainly larger can be skipped.
+ */
+public class TopN {
+
+    private int capacity;
+    private int size;
+    private int[] indices;
+    private double[] distances;
+
+    public TopN(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        indices = new int[this.capacity];
+        distances = new double[this.capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Distance of the N-th best result, or Double.POSITIVE_INFINITY if there are less than N results yet.
+     */
+    public double threshold() {
+        if (size < capacity) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return capacity == 0 ? Double.NEGATIVE_INFINITY : distances[0];
+    }
+
+    /*
+     * Add a result, returns true if it is among the N best so far.
+     */
+    public boolean offer(int index, double distance) {
+        if (size < capacity) {
+            // append and sift up
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (!worse(index, distance, indices[parent], distances[parent])) {
+                    break;
+                }
+                indices[k] = indices[parent];
+                distances[k] = distances[parent];
+                k = parent;
+            }
+            indices[k] = index;
+            distances[k] = distance;
+            return true;
+        }
+        if (capacity == 0 || !worse(indices[0], distances[0], index, distance)) {
+            return false;
+        }
+
+        // replace the worst result
+        siftDown(index, distance);
+        return true;
+    }
+
+    /*
+     * Put (index, distance) at the root and restore the heap order.
+     */
+    private void siftDown(int index, double distance) {
+        int k = 0;
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(indices[child + 1], distances[child + 1], indices[child], distances[child])) {
+                child++;
+            }
+            if (!worse(indices[child], distances[child], index, distance)) {
+                break;
+            }
+            indices[k] = indices[child];
+            distances[k] = distances[child];
+            k = child;
+        }
+        indices[k] = index;
+        distances[k] = distance;
+    }
+
+    /*
+     * Add all results of another collector.
+     */
+    public void merge(TopN other) {
+        for (int k = 0; k < other.size; k++) {
+            offer(other.indices[k], other.distances[k]);
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /*
+     * Corpus indices of the results, best first.
+     */
+    public int[] sortedIndices() {
+        int[] sortedIndices = new int[size];
+        sort(sortedIndices, new double[size]);
+        return sortedIndices;
+    }
+
+    /*
+     * Distances of the results, best first.
+     */
+    public double[] sortedDistances() {
+        double[] sortedDistances = new double[size];
+        sort(new int[size], sortedDistances);
+        return sortedDistances;
+    }
+
+    /*
+     * Write the results in ascending order, by removing the worst result from a copy of the heap until it is empty.
+     */
+    public void sort(int[] sortedIndices, double[] sortedDistances) {
+        TopN heap = new TopN(0);
+        heap.capacity = capacity;
+        heap.size = size;
+        heap.indices = indices.clone();
+        heap.distances = distances.clone();
+        while (heap.size > 0) {
+            int last = --heap.size;
+            sortedIndices[last] = heap.indices[0];
+            sortedDistances[last] = heap.distances[0];
+            if (last > 0) {
+                heap.siftDown(heap.indices[last], heap.distances[last]);
+            }
+        }
+    }
+
+    /*
+     * True if result (index1, distance1) ranks after result (index2, distance2).
+     */
+    private static boolean worse(int index1, double distance1, int index2, double distance2) {
+        int c = Double.compare(distance1, distance2);
+        return c > 0 || (c == 0 && index1 > index2);
+    }
+
+}
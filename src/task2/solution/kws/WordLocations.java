@@ -0,0 +1,160 @@
+package kws;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Word polygons of a page, read from the SVG files of the ground truth (data/ground-truth/locations).
+ *
+ * Each word is a <path> element with the word id and a closed polygon "M x y L x y ... Z" in page coordinates.
+ */
+public class WordLocations {
+
+    // factories are not guaranteed to be thread-safe, see GXLReader
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(WordLocations::createFactory);
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private WordLocations() {
+    }
+
+    public static List<Word> read(File svg) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(svg))) {
+            return read(in);
+        }
+    }
+
+    public static List<Word> read(InputStream in) throws IOException {
+        List<Word> words = new ArrayList<Word>();
+        try {
+            XMLStreamReader reader = FACTORY.get().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "path".equals(reader.getLocalName())) {
+                        String id = reader.getAttributeValue(null, "id");
+                        String d = reader.getAttributeValue(null, "d");
+                        if (id == null || d == null) {
+                            throw new IOException("Path without id or d at line "
+                                    + reader.getLocation().getLineNumber());
+                        }
+                        words.add(new Word(id, polygon(d)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid SVG: " + e.getMessage(), e);
+        }
+        return words;
+    }
+
+    /*
+     * Polygon of a path with absolute move and line commands only.
+     */
+    private static Path2D.Double polygon(String d) throws IOException {
+        Path2D.Double polygon = new Path2D.Double();
+        String[] tokens = d.trim().split("[\\s,]+");
+        boolean started = false;
+        int t = 0;
+        try {
+            while (t < tokens.length) {
+                String token = tokens[t++];
+                if ("M".equals(token) || "L".equals(token)) {
+                    double x = Double.parseDouble(tokens[t++]);
+                    double y = Double.parseDouble(tokens[t++]);
+                    if (!started || "M".equals(token)) {
+                        polygon.moveTo(x, y);
+                        started = true;
+                    } else {
+                        polygon.lineTo(x, y);
+                    }
+                } else if ("Z".equalsIgnoreCase(token)) {
+                    polygon.closePath();
+                } else {
+                    throw new IOException("Unsupported path command " + token);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid path " + d, e);
+        }
+        return polygon;
+    }
+
+    /*
+     * Id and polygon of a word.
+     */
+    public static class Word {
+
+        private String id;
+        private Path2D.Double polygon;
+
+        Word(String id, Path2D.Double polygon) {
+            this.id = id;
+            this.polygon = polygon;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Path2D.Double getPolygon() {
+            return polygon;
+        }
+
+        /*
+         * Pixels of the word image: the pixels of the polygon bounds, i.e. from the floor of the minimum to the floor of
+         * the maximum coordinates, both inclusive (as cropped by DIVAServices).
+         */
+        public Rectangle getBounds() {
+            Rectangle2D bounds = polygon.getBounds2D();
+            int x = (int) Math.floor(bounds.getMinX());
+            int y = (int) Math.floor(bounds.getMinY());
+            return new Rectangle(x, y, (int) Math.floor(bounds.getMaxX()) - x + 1,
+                    (int) Math.floor(bounds.getMaxY()) - y + 1);
+        }
+
+        /*
+         * Pixels of the word image that belong to the word (row by row): the polygon is filled including its outline,
+         * as rasterized by DIVAServices.
+         */
+        public boolean[] mask() {
+            Rectangle bounds = getBounds();
+            BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D g = image.createGraphics();
+            g.translate(-bounds.x, -bounds.y);
+            g.setColor(Color.WHITE);
+            g.fill(polygon);
+            g.draw(polygon);
+            g.dispose();
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            boolean[] mask = new boolean[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                mask[i] = pixels[i] != 0;
+            }
+            return mask;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package kws;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * SubstitutionKernel with the Vector API: the substitution costs of one node of g1 are computed for as many nodes
+ * of g2 at once as the preferred vector shape holds doubles (4 with AVX2, 8 with AVX-512), the edge matching costs
+ * are gathered from the table by the degrees, and the row minimum is kept lane-wise until the end of the row. The
+ * remaining nodes are computed in the same way with a partial mask.
+ *
+ * Requires --add-modules jdk.incubator.vector for compiling and running (see SubstitutionKernel). On a CPU without
+ * vector registers for at least two doubles, the constructor fails and HED keeps its scalar loop.
+ */
+final class VectorSubstitution implements SubstitutionKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    VectorSubstitution() {
+        if (SPECIES.length() < 2) {
+            throw new UnsupportedOperationException("No vector registers for doubles");
+        }
+    }
+
+    @Override
+    public double row(double x, double y, double[] xs, double[] ys, int[] degrees, int n, double[] edgeTable,
+                      int edgeRow, double deletion, double[] costBA) {
+        DoubleVector px = DoubleVector.broadcast(SPECIES, x);
+        DoubleVector py = DoubleVector.broadcast(SPECIES, y);
+        DoubleVector best = DoubleVector.broadcast(SPECIES, deletion);
+        int length = SPECIES.length();
+        int bound = SPECIES.loopBound(n);
+        int j = 0;
+        for (; j < bound; j += length) {
+            DoubleVector dx = px.sub(DoubleVector.fromArray(SPECIES, xs, j));
+            DoubleVector dy = py.sub(DoubleVector.fromArray(SPECIES, ys, j));
+            DoubleVector subNode = dx.mul(dx).add(dy.mul(dy)).lanewise(VectorOperators.SQRT);
+            DoubleVector subEdges = DoubleVector.fromArray(SPECIES, edgeTable, edgeRow, degrees, j);
+            DoubleVector substitution = subNode.add(subEdges.mul(0.5)).mul(0.5);
+            best = best.min(substitution);
+            DoubleVector.fromArray(SPECIES, costBA, j).min(substitution).intoArray(costBA, j);
+        }
+        if (j < n) {
+            VectorMask<Double> mask = SPECIES.indexInRange(j, n);
+            DoubleVector dx = px.sub(DoubleVector.fromArray(SPECIES, xs, j, mask));
+            DoubleVector dy = py.sub(DoubleVector.fromArray(SPECIES, ys, j, mask));
+            DoubleVector subNode = dx.mul(dx).add(dy.mul(dy)).lanewise(VectorOperators.SQRT);
+            DoubleVector subEdges = DoubleVector.fromArray(SPECIES, edgeTable, edgeRow, degrees, j, mask);
+            DoubleVector substitution = subNode.add(subEdges.mul(0.5)).mul(0.5);
+            best = best.blend(best.min(substitution), mask);
+            DoubleVector.fromArray(SPECIES, costBA, j, mask).min(substitution).intoArray(costBA, j, mask);
+        }
+        return best.reduceLanes(VectorOperators.MIN);
+    }
+
+}